@@ -0,0 +1,140 @@
+/**
+ * A ConcurrentServer with several acceptors (SO_REUSEPORT) must
+ * serve every client right, let the kernel spread the connections
+ * over all its server sockets, and stop all of them on close.
+ */
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class AcceptorTests {
+    Log.Mode mode;
+    ServerOptions options = new ServerOptions();
+    ConcurrentServer server;
+    Thread serverThread;
+    int port;
+
+    @Before
+    public void quiet() throws IOException {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+        options.threads = 16;
+        options.backlog = 256;
+        try (ServerSocket probe = new ServerSocket()) {
+            assumeTrue("SO_REUSEPORT unsupported",
+                       probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT));
+        }
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        if (server != null) {
+            server.close();
+            serverThread.join();
+        }
+        Log.configure(mode, 100, 1);
+    }
+
+    void startServer() throws IOException {
+        List<ServerSocket> serverSockets = ConcurrentServer.listen(InetAddress.getLoopbackAddress(), 0, options);
+        port = serverSockets.get(0).getLocalPort();
+        server = new ConcurrentServer(serverSockets, options);
+        serverThread = new Thread() {
+                public void run() {
+                    try {
+                        server.serve();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+    }
+
+    String dialogue(int value) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(10000);
+            TestableClient client = new TestableClient(socket);
+            client.sendAll(new int[] { value, value });
+            return client.conclude();
+        }
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals(1, new ServerOptions().acceptors);
+        assertEquals(4, ServerOptions.parse(new String[] { "--acceptors=4" }).acceptors);
+    }
+
+    @Test
+    public void testSamePort() throws Exception {
+        options.acceptors = 3;
+        List<ServerSocket> serverSockets = ConcurrentServer.listen(InetAddress.getLoopbackAddress(), 0, options);
+        try {
+            assertEquals(3, serverSockets.size());
+            for (ServerSocket serverSocket : serverSockets)
+                assertEquals(serverSockets.get(0).getLocalPort(), serverSocket.getLocalPort());
+        }
+        finally {
+            for (ServerSocket serverSocket : serverSockets)
+                serverSocket.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testSpread() throws Exception {
+        options.acceptors = 4;
+        startServer();
+
+        int clients = 200;
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int c = 1; c <= clients; c++) {
+                final int value = c;
+                results.add(pool.submit(() -> dialogue(value)));
+            }
+            for (int c = 1; c <= clients; c++)
+                assertEquals("the sum " + 2 * c + " is positive", results.get(c - 1).get());
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        // connections come from different ports, and so hash differently
+        long total = 0;
+        for (int i = 0; i < options.acceptors; i++) {
+            assertTrue("acceptor " + i + " accepted nothing", server.acceptedConnections(i) > 0);
+            total += server.acceptedConnections(i);
+        }
+        assertEquals(clients, total);
+    }
+
+    @Test(timeout = 10000)
+    public void testClose() throws Exception {
+        options.acceptors = 4;
+        startServer();
+        assertEquals("the sum 2 is positive", dialogue(1));
+
+        server.close();
+        serverThread.join();
+        for (ServerSocket serverSocket : server.serverSockets)
+            assertTrue(serverSocket.isClosed());
+        try {
+            dialogue(1);
+            fail("connected to a closed server");
+        }
+        catch (ConnectException e) {
+            // expected
+        }
+        server = null;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Named counters (see Accumulators) must add up the numbers of many
+ * dialogues, from many connections at once, and leave every
+ * dialogue's own sum alone.
+ *
+ * Counters are global, so that every test uses names of its own.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class AccumulatorTests {
+    @ClassRule
+    public static final ServerFixture server = ServerFixture.shared();
+
+    Log.Mode mode;
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+    }
+
+    @After
+    public void restore() {
+        Log.configure(mode, 100, 1);
+    }
+
+    static String unique(String name) {
+        return name + "-" + UUID.randomUUID();
+    }
+
+    // one dialogue adding `values` to `name`
+    String add(String name, int[] values) throws IOException {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            client.addTo(name);
+            client.sendAll(values);
+            return client.conclude();
+        }
+    }
+
+    long get(String name) throws IOException {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            long value = client.getCounter(name);
+            client.conclude();
+            return value;
+        }
+    }
+
+    @Test
+    public void testAcrossConnections() throws Exception {
+        String name = unique("orders");
+        assertEquals(0, get(name));
+        assertEquals("the sum 6 is positive", add(name, new int[] { 1, 2, 3 }));
+        assertEquals("the sum -10 is negative", add(name, new int[] { -10 }));
+        assertEquals(-4, get(name));
+    }
+
+    @Test
+    public void testWithinDialogue() throws Exception {
+        String a = unique("a");
+        String b = unique("b");
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            client.send(100); // before any counter line: not counted
+            client.addTo(a);
+            client.sendAll(new int[] { 1, 2 });
+            assertEquals(3, client.getCounter(a));
+            client.addTo(b);
+            client.send(5);
+            assertEquals(3, client.getCounter(a));
+            assertEquals(5, client.getCounter(b));
+            assertEquals("the sum 108 is positive", client.conclude());
+        }
+    }
+
+    @Test
+    public void testNoWrapAround() throws Exception {
+        // the dialogue's int sum wraps around; the counter does not
+        String name = unique("big");
+        add(name, new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE });
+        assertEquals(2L * Integer.MAX_VALUE, get(name));
+    }
+
+    @Test(timeout = 60000)
+    public void testHotCounter() throws Exception {
+        String name = unique("hot");
+        int clients = 64;
+        int[] values = new int[10000];
+        Arrays.fill(values, 1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int c = 0; c < clients; c++)
+                results.add(pool.submit(() -> add(name, values)));
+            for (Future<String> result : results)
+                assertEquals("the sum 10000 is positive", result.get());
+        }
+        finally {
+            pool.shutdown();
+        }
+        assertEquals(clients * 10000L, get(name));
+    }
+
+    @Test
+    public void testBrokenDialogue() throws Exception {
+        // numbers received before the connection broke count
+        String name = unique("broken");
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            client.addTo(name);
+            client.sendAll(new int[] { 7, 8 });
+            client.flush();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (get(name) != 15 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(15, get(name));
+    }
+
+    @Test
+    public void testInvalidName() throws Exception {
+        try (Socket socket = server.connect()) {
+            socket.getOutputStream().write("counter no/slashes\n".getBytes(StandardCharsets.UTF_8));
+            // the server drops the dialogue
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void testCapacity() {
+        Accumulators accumulators = new Accumulators(2);
+        accumulators.add("a", 1);
+        accumulators.add("b", 2);
+        accumulators.add("a", 3);
+        try {
+            accumulators.add("c", 4);
+            fail("more counters than capacity");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(4, accumulators.get("a"));
+        assertEquals(0, accumulators.get("c"));
+        assertEquals("{a=4, b=2}", accumulators.snapshot().toString());
+    }
+
+    @Test
+    public void testNames() {
+        assertTrue(Accumulators.isValidName("eu-west.orders:2024_q1"));
+        assertFalse(Accumulators.isValidName(""));
+        assertFalse(Accumulators.isValidName("a b"));
+        assertFalse(Accumulators.isValidName(String.join("", Collections.nCopies(65, "x"))));
+    }
+}
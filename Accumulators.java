@@ -0,0 +1,135 @@
+/**
+ * The sum of a dialogue dies with the dialogue. Callers who want
+ * totals over many dialogues, from many clients, would have to merge
+ * the sums somewhere else. Accumulators are named, long-lived
+ * counters on the server instead: a client that sends "counter
+ * <name>" (see TestableServer.COUNTER) has the numbers it sends
+ * afterwards added to that counter as well as to its own sum, and
+ * "get <name>" (TestableServer.GET) reads a counter.
+ *
+ * A counter that thousands of sessions add to at the same time must
+ * not become a lock they all wait for. Every counter is a LongAdder:
+ * concurrent additions go to different cells, which are only added
+ * up when the counter is read. Sessions make contention rarer still
+ * by adding up their numbers locally and handing the counter one
+ * partial sum every so often (see TestableServer.SessionParser).
+ *
+ * Counters live in memory, from their first use until the server
+ * stops, and there are at most `capacity` of them. Names are 1 to 64
+ * letters, digits and "_.:-".
+ *
+ * All methods are thread-safe.
+ */
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Accumulators {
+    // shared by all sessions of TestableServer
+    public static final Accumulators global = new Accumulators(10000);
+
+    /**
+     * @param capacity	most counters kept
+     */
+    public Accumulators(int capacity) {
+        configure(capacity);
+    }
+
+    final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    volatile int capacity;
+
+    // if set, every addition is logged to it (see WriteAheadLog)
+    volatile WriteAheadLog log;
+
+    public void configure(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > 64)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (! (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || "_.:-".indexOf(c) >= 0))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The counter `name`, created at 0 if there is none yet.
+     *
+     * @throws IllegalArgumentException if the name is not valid
+     * @throws IllegalStateException if there are `capacity` counters
+     *         already (checked loosely: sessions creating counters at
+     *         the same time may overshoot by a few)
+     */
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter != null)
+            return counter;
+        if (! isValidName(name))
+            throw new IllegalArgumentException("invalid counter name: " + name);
+        if (counters.size() >= capacity)
+            throw new IllegalStateException("too many counters");
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * The value of counter `name`; 0 if there is none. With a
+     * WriteAheadLog, it may include additions that are logged but not
+     * durable yet, which a crash would lose.
+     */
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Add `delta` to counter `name`.
+     *
+     * @return the number of the log record, to pass to `sync`
+     * @throws IllegalStateException if the WriteAheadLog was closed or
+     *         failed; the counter is left as it was
+     */
+    public long add(String name, long delta) {
+        LongAdder counter = counter(name);
+        // the log first, so that memory never holds what the log lacks
+        WriteAheadLog log = this.log;
+        long record = log == null ? 0 : log.append(name, delta);
+        if (record == Long.MAX_VALUE)
+            throw new IllegalStateException("write-ahead log closed or failed");
+        counter.add(delta);
+        return record;
+    }
+
+    /**
+     * Wait until the additions up to the one that returned `record`
+     * are durable. Returns at once without a WriteAheadLog.
+     */
+    public void sync(long record) throws IOException {
+        WriteAheadLog log = this.log;
+        if (log != null && record > 0)
+            log.sync(record);
+    }
+
+    // set a counter recovered by WriteAheadLog, whatever the capacity
+    void restore(String name, long value) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).add(value);
+    }
+
+    /** The values of all counters, by name. */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    public int size() {
+        return counters.size();
+    }
+}
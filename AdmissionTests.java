@@ -0,0 +1,239 @@
+/**
+ * A ConcurrentServer must not let stalled, idle or greedy clients
+ * hold on to its threads, and must turn excess clients away at
+ * once when asked to.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+public class AdmissionTests {
+    final static String localhost = "localhost";
+
+    Log.Mode mode;
+    ServerOptions options = new ServerOptions();
+    ConcurrentServer server;
+    Thread serverThread;
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+        options.threads = 8;
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        if (server != null) {
+            server.close();
+            serverThread.join();
+        }
+        Log.configure(mode, 100, 1);
+    }
+
+    void startServer() throws IOException {
+        server = new ConcurrentServer(new ServerSocket(0, options.backlog), options);
+        serverThread = new Thread() {
+                public void run() {
+                    try {
+                        server.serve();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+    }
+
+    Socket connect() throws IOException {
+        Socket socket = new Socket(localhost, server.serverSocket.getLocalPort());
+        socket.setSoTimeout(10000); // fail rather than hang
+        return socket;
+    }
+
+    void awaitCount(Callable<Long> count, long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (count.call() < expected && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(expected, (long) count.call());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        options.readTimeoutMillis = 200;
+        startServer();
+        long timeouts = ServerMetrics.global.getReadTimeouts();
+
+        try (Socket socket = connect()) {
+            // a number, but never the empty line
+            socket.getOutputStream().write("1\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        awaitCount(server::failedSessions, 1);
+        assertEquals(timeouts + 1, ServerMetrics.global.getReadTimeouts());
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        options.idleTimeoutMillis = 200;
+        startServer();
+
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket);
+            assertTrue(client.keepAlive());
+            client.send(3);
+            assertEquals("the sum 3 is positive", client.conclude());
+
+            // nothing more to say: the server hangs up
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        awaitCount(server::completedSessions, 1);
+        assertEquals(0, server.failedSessions());
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        options.maxSessions = 1;
+        options.rejectWhenFull = true;
+        startServer();
+
+        try (Socket first = connect()) {
+            TestableClient client = new TestableClient(first);
+            assertTrue(client.keepAlive());
+
+            try (Socket second = connect()) {
+                new TestableClient(second).keepAlive();
+                fail("second connection was served");
+            }
+            catch (ConnectException e) {
+                assertEquals("server busy", e.getMessage());
+            }
+            assertEquals(1, server.rejectedConnections());
+
+            // the first client is unaffected
+            client.send(1);
+            assertEquals("the sum 1 is positive", client.conclude());
+        }
+
+        // once the first session is over, there is room again
+        awaitCount(server::completedSessions, 1);
+        try (Socket third = connect()) {
+            TestableClient client = new TestableClient(third);
+            client.send(2);
+            assertEquals("the sum 2 is positive", client.conclude());
+        }
+    }
+
+    @Test
+    public void testQueueWhenFull() throws Exception {
+        options.maxSessions = 1;
+        startServer();
+
+        Socket first = connect();
+        try (Socket second = connect()) {
+            // the second client waits in the backlog
+            FutureTask<String> queued = new FutureTask<>(() -> {
+                    TestableClient other = new TestableClient(second);
+                    other.send(4);
+                    return other.conclude();
+                });
+            try {
+                TestableClient client = new TestableClient(first);
+                assertTrue(client.keepAlive());
+                new Thread(queued).start();
+                Thread.sleep(300);
+                assertFalse(queued.isDone());
+
+                client.send(1);
+                client.conclude();
+            }
+            finally {
+                // the first client hangs up, which frees its session
+                first.close();
+            }
+
+            assertEquals("the sum 4 is positive", queued.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(0, server.rejectedConnections());
+    }
+
+    @Test
+    public void testEndlessLine() throws Exception {
+        startServer();
+        long errors = ServerMetrics.global.getParseErrors();
+
+        try (Socket socket = connect()) {
+            // what looks like "keep-alive", but never ends
+            byte[] chunk = new byte[1024];
+            Arrays.fill(chunk, (byte) 'k');
+            try {
+                for (int i = 0; i < 1024; i++)
+                    socket.getOutputStream().write(chunk);
+            }
+            catch (IOException e) {
+                // the server closed the connection while we wrote
+            }
+            try {
+                assertEquals(-1, socket.getInputStream().read());
+            }
+            catch (SocketException e) {
+                // reset, because bytes we sent were left unread
+            }
+        }
+        awaitCount(server::failedSessions, 1);
+        // other classes may count parse errors at the same time
+        assertTrue(ServerMetrics.global.getParseErrors() > errors);
+    }
+
+    @Test
+    public void testMaxNumbers() throws Exception {
+        options.maxNumbers = 3;
+        startServer();
+
+        for (boolean binary : new boolean[] { false, true }) {
+            try (Socket socket = connect()) {
+                TestableClient client = new TestableClient(socket, binary);
+                client.sendAll(new int[] { 1, 2, 3 });
+                assertEquals("the sum 6 is positive", client.conclude());
+            }
+
+            try (Socket socket = connect()) {
+                TestableClient client = new TestableClient(socket, binary);
+                client.sendAll(new int[] { 1, 2, 3, 4 });
+                client.conclude();
+                fail("4 numbers were accepted");
+            }
+            catch (IOException | NumberFormatException e) {
+                // the server hung up instead of sending a sum
+            }
+        }
+        awaitCount(server::failedSessions, 2);
+    }
+
+    @Test
+    public void testParseOptions() {
+        ServerOptions parsed = ServerOptions.parse(new String[] {
+                "--reject-when-full", "--backlog=7", "--read-timeout=100",
+                "--idle-timeout=200", "--max-numbers=1000"
+            });
+        assertTrue(parsed.rejectWhenFull);
+        assertEquals(7, parsed.backlog);
+        assertEquals(100, parsed.readTimeoutMillis);
+        assertEquals(200, parsed.idleTimeoutMillis);
+        assertEquals(1000, parsed.maxNumbers);
+    }
+
+    @Test
+    public void testLargeMaxNumbers() {
+        ServerOptions parsed = ServerOptions.parse(new String[] { "--max-numbers=10000000000" });
+        assertEquals(10000000000L, parsed.maxNumbers);
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * TestableClient blocks its thread in `write` and in `readLine`,
+ * so that every dialogue in progress needs a thread of its own.
+ * AsyncClient runs whole dialogues without blocking: every call to
+ * `sum` returns a CompletableFuture at once, and the dialogue runs
+ * on AsynchronousSocketChannels, driven by completion callbacks on
+ * a small pool of threads (one is enough for hundreds of dialogues).
+ * The reply to the server ("positive", "negative" or "neither
+ * positive nor negative", or the reply byte of BinaryProtocol) is
+ * sent automatically once the sum arrives.
+ *
+ *     try (AsyncClient client = new AsyncClient(1)) {
+ *         client.sum(server, new int[] { 1, 2, 3, 4 })
+ *               .thenAccept(result -> System.out.println(result));
+ *         ...
+ *     }
+ *
+ * Every dialogue has a connection of its own. The numbers are
+ * encoded into a 64 KiB buffer at a time, so that long arrays are
+ * never copied as a whole.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+public class AsyncClient implements Closeable {
+
+    /** The outcome of a dialogue. */
+    public static class SumResult {
+        SumResult(long sum, String reply) {
+            this.sum = sum;
+            this.reply = reply;
+        }
+
+        /** The sum sent by the server. */
+        public final long sum;
+
+        /** The reply sent back to the server. */
+        public final String reply;
+
+        /** Like `TestableClient.conclude()`, e.g. "the sum 10 is positive" */
+        @Override
+        public String toString() {
+            return String.format("the sum %d is %s", sum, reply);
+        }
+    }
+
+    /**
+     * @param threads	threads running the completion callbacks
+     */
+    public AsyncClient(int threads) throws IOException {
+        this.group = AsynchronousChannelGroup.withFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "async-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    final AsynchronousChannelGroup group;
+
+    // longest wait for the server during a dialogue
+    public long timeoutMillis = 30000;
+
+    /**
+     * Start a dialogue in the text protocol.
+     */
+    public CompletableFuture<SumResult> sum(InetSocketAddress server, int[] values) {
+        return sum(server, values, false);
+    }
+
+    /**
+     * Start a dialogue.
+     *
+     * @param binary	whether to speak BinaryProtocol instead of text
+     * @return the result, or an IOException if the dialogue failed
+     */
+    public CompletableFuture<SumResult> sum(InetSocketAddress server, int[] values, boolean binary) {
+        Dialogue dialogue;
+        try {
+            dialogue = new Dialogue(AsynchronousSocketChannel.open(group), values, binary);
+        }
+        catch (IOException e) {
+            CompletableFuture<SumResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        dialogue.channel.connect(server, null, dialogue.then(v -> dialogue.send()));
+        return dialogue.result;
+    }
+
+    // what to do when an operation completes; throwing fails the dialogue
+    interface Step<V> {
+        void run(V value) throws IOException;
+    }
+
+    // The state of one dialogue. Its callbacks never run at the same
+    // time, since each one starts the next operation only when done.
+    class Dialogue {
+        Dialogue(AsynchronousSocketChannel channel, int[] values, boolean binary) {
+            this.channel = channel;
+            this.values = values;
+            this.binary = binary;
+        }
+
+        final AsynchronousSocketChannel channel;
+        final int[] values;
+        final boolean binary;
+        final CompletableFuture<SumResult> result = new CompletableFuture<>();
+
+        final ByteBuffer out = ByteBuffer.allocate(1 << 16);
+        final ByteBuffer in = ByteBuffer.allocate(64);
+
+        // next value to encode, and whether the end of the numbers
+        // has been encoded
+        int next = 0;
+        boolean ended = false;
+
+        // whether the MAGIC byte of binary mode has been encoded
+        boolean announced = false;
+
+        <V> CompletionHandler<V, Void> then(Step<V> step) {
+            return new CompletionHandler<V, Void>() {
+                @Override
+                public void completed(V value, Void attachment) {
+                    try {
+                        step.run(value);
+                    }
+                    catch (IOException | RuntimeException e) {
+                        fail(e);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    fail(e);
+                }
+            };
+        }
+
+        void fail(Throwable e) {
+            close();
+            result.completeExceptionally(e instanceof InterruptedByTimeoutException
+                                         ? new SocketTimeoutException("no answer from server")
+                                         : e);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                // the dialogue is over either way
+            }
+        }
+
+        // encode as much as fits into `out`, then write it
+        void send() {
+            out.clear();
+            if (binary)
+                encodeFrames();
+            else
+                encodeLines();
+            out.flip();
+            channel.write(out, timeoutMillis, TimeUnit.MILLISECONDS, null, then(this::sent));
+        }
+
+        void sent(int n) {
+            if (out.hasRemaining())
+                channel.write(out, timeoutMillis, TimeUnit.MILLISECONDS, null, then(this::sent));
+            else if (! ended)
+                send();
+            else
+                receive();
+        }
+
+        void encodeLines() {
+            byte[] buf = out.array();
+            int p = out.position();
+            int end = out.limit() - TestableClient.MAX_NUMBER_LINE;
+            while (next < values.length && p <= end)
+                p = TestableClient.encodeLine(values[next++], buf, p);
+            if (next == values.length && p < out.limit()) {
+                buf[p++] = '\n'; // the empty line
+                ended = true;
+            }
+            out.position(p);
+        }
+
+        void encodeFrames() {
+            if (! announced) {
+                out.put((byte) BinaryProtocol.MAGIC);
+                announced = true;
+            }
+            while (next < values.length && out.remaining() >= 8) {
+                int count = Math.min(Math.min(BinaryProtocol.FRAME_SIZE, values.length - next),
+                                     (out.remaining() - 4) / 4);
+                out.putInt(count);
+                for (int i = 0; i < count; i++)
+                    out.putInt(values[next++]);
+            }
+            if (next == values.length && out.remaining() >= 4) {
+                out.putInt(0);
+                ended = true;
+            }
+        }
+
+        // read until the sum is complete: 8 bytes, or a line
+        void receive() {
+            channel.read(in, timeoutMillis, TimeUnit.MILLISECONDS, null, then(this::received));
+        }
+
+        void received(int n) throws IOException {
+            if (n < 0)
+                throw new EOFException("connection closed before the sum");
+
+            long sum;
+            byte[] reply;
+            String replyText;
+            if (binary) {
+                if (in.position() < 8) {
+                    receive();
+                    return;
+                }
+                sum = in.getLong(0);
+                replyText = BinaryProtocol.replyText(sum);
+                reply = new byte[] { BinaryProtocol.replyByte(sum) };
+            }
+            else {
+                int end = 0;
+                while (end < in.position() && in.get(end) != '\n')
+                    end++;
+                if (end == in.position()) {
+                    if (! in.hasRemaining())
+                        throw new ProtocolException("line too long where the sum was expected");
+                    receive();
+                    return;
+                }
+                String line = new String(in.array(), 0, end, StandardCharsets.UTF_8).trim();
+                if (TestableServer.BUSY.equals(line))
+                    throw new ConnectException("server busy");
+                try {
+                    sum = Integer.parseInt(line);
+                }
+                catch (NumberFormatException e) {
+                    throw new ProtocolException("expected the sum, got " + line);
+                }
+                replyText = sum > 0 ? "positive" : sum < 0 ? "negative" : "neither positive nor negative";
+                reply = (replyText + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+
+            SumResult done = new SumResult(sum, replyText);
+            ByteBuffer replyBuffer = ByteBuffer.wrap(reply);
+            channel.write(replyBuffer, timeoutMillis, TimeUnit.MILLISECONDS, null, then(new Step<Integer>() {
+                    public void run(Integer written) {
+                        if (replyBuffer.hasRemaining()) {
+                            channel.write(replyBuffer, timeoutMillis, TimeUnit.MILLISECONDS, null, then(this));
+                            return;
+                        }
+                        close();
+                        result.complete(done);
+                    }
+                }));
+        }
+    }
+
+    /**
+     * Stop the callback threads. Dialogues in progress fail.
+     */
+    @Override
+    public void close() throws IOException {
+        group.shutdownNow();
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * AsyncClient must run many dialogues at once on a single thread,
+ * get every sum right, and fail its futures instead of throwing.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class AsyncClientTests {
+    final static String localhost = "localhost";
+
+    @ClassRule
+    public static final ServerFixture server = ServerFixture.shared();
+
+    Log.Mode mode;
+    InetSocketAddress address = server.address();
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+    }
+
+    @After
+    public void restore() {
+        Log.configure(mode, 100, 1);
+    }
+
+    static int[] numbers(int n, int seed) {
+        Random random = new Random(seed);
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++)
+            values[i] = random.nextInt();
+        return values;
+    }
+
+    @Test
+    public void testSingleDialogue() throws Exception {
+        try (AsyncClient client = new AsyncClient(1)) {
+            assertEquals("the sum 10 is positive",
+                         client.sum(address, new int[] { 1, 2, 3, 4 }).get(10, TimeUnit.SECONDS).toString());
+            assertEquals("the sum 0 is neither positive nor negative",
+                         client.sum(address, new int[0]).get(10, TimeUnit.SECONDS).toString());
+            AsyncClient.SumResult result = client.sum(address, new int[] { Integer.MIN_VALUE, -1 }, true)
+                .get(10, TimeUnit.SECONDS);
+            assertEquals(Integer.MIN_VALUE - 1L, result.sum);
+            assertEquals("negative", result.reply);
+        }
+    }
+
+    @Test
+    public void testManyDialoguesOnOneThread() throws Exception {
+        try (AsyncClient client = new AsyncClient(1)) {
+            List<CompletableFuture<AsyncClient.SumResult>> results = new ArrayList<>();
+            List<Long> expected = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                boolean binary = i % 2 == 1;
+                // some dialogues need several buffers
+                int[] values = numbers(i % 50 == 0 ? 100000 : 100, i);
+                long sum = 0;
+                for (int value : values)
+                    sum += value;
+                expected.add(binary ? sum : (int) sum);
+                results.add(client.sum(address, values, binary));
+            }
+
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+            for (int i = 0; i < results.size(); i++)
+                assertEquals("dialogue " + i, (long) expected.get(i), results.get(i).get().sum);
+        }
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception {
+        int port;
+        try (ServerSocket unused = new ServerSocket(0)) {
+            port = unused.getLocalPort();
+        }
+        try (AsyncClient client = new AsyncClient(1)) {
+            CompletableFuture<AsyncClient.SumResult> result =
+                client.sum(new InetSocketAddress(localhost, port), new int[] { 1 });
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("got a sum without a server");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        // a server that accepts but never answers
+        try (ServerSocket silent = new ServerSocket(0);
+             AsyncClient client = new AsyncClient(1)) {
+            client.timeoutMillis = 200;
+            CompletableFuture<AsyncClient.SumResult> result =
+                client.sum(new InetSocketAddress(localhost, silent.getLocalPort()), new int[] { 1 });
+            // held open, so that the client sees silence, not a close
+            Socket accepted = silent.accept();
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("got a sum from a silent server");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof SocketTimeoutException);
+            }
+            finally {
+                accepted.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * The batch methods of TestableClient must put exactly the same
+ * lines on the wire as `send` would, only in fewer writes.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.net.*;
+import java.io.*;
+import java.util.stream.IntStream;
+
+public class BatchClientTests {
+    public static final String localhost = "localhost";
+
+    // what a client does between connecting and concluding
+    interface Upload {
+        void run(TestableClient client) throws IOException;
+    }
+
+    // run `upload` against a mock server that answers `sum`, and
+    // return every line the client sent
+    String recordLines(Upload upload, String sum) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            final int port = serverSocket.getLocalPort();
+
+            Thread clientThread = new Thread() {
+                    public void run() {
+                        try (Socket socket = new Socket(localhost, port)) {
+                            TestableClient client = new TestableClient(socket);
+                            client.setFlushThreshold(16);
+                            upload.run(client);
+                            client.conclude();
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            clientThread.start();
+
+            StringBuilder lines = new StringBuilder();
+            try (Socket clientSocket = serverSocket.accept()) {
+                PrintWriter toClient = new PrintWriter(clientSocket.getOutputStream(), true);
+                toClient.println(sum);
+                BufferedReader fromClient = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                String line;
+                while ((line = fromClient.readLine()) != null)
+                    lines.append(line).append('|');
+            }
+            clientThread.join();
+            return lines.toString();
+        }
+    }
+
+    @Test
+    public void testSendAllInts() throws Exception {
+        assertEquals("1|-2|0|2147483647|-2147483648||negative|",
+                     recordLines(client -> client.sendAll(new int[] { 1, -2, 0, Integer.MAX_VALUE, Integer.MIN_VALUE }),
+                                 "-2"));
+    }
+
+    @Test
+    public void testSendAllLongs() throws Exception {
+        assertEquals("9223372036854775807|-9223372036854775808|10||positive|",
+                     recordLines(client -> client.sendAll(new long[] { Long.MAX_VALUE, Long.MIN_VALUE, 10 }),
+                                 "10"));
+    }
+
+    @Test
+    public void testMixedWithSend() throws Exception {
+        assertEquals("1|2|3|4|5||positive|",
+                     recordLines(client -> {
+                             client.sendAll(new int[] { 1, 2 });
+                             client.send(3);
+                             client.sendAll(IntStream.of(4, 5));
+                         }, "15"));
+    }
+
+    @Test
+    public void testLargeUploadToServer() throws Exception {
+        int n = 1000000;
+        long expected = 0;
+        for (int i = 0; i < n; i++)
+            expected += i - n / 2;
+
+        Log.Mode mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread serverThread = new Thread() {
+                    public void run() {
+                        try {
+                            TestableServer.runServer(serverSocket);
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            serverThread.start();
+
+            try (Socket socket = new Socket(localhost, serverSocket.getLocalPort())) {
+                TestableClient client = new TestableClient(socket);
+                client.sendAll(IntStream.range(0, n).map(i -> i - n / 2));
+                assertEquals("the sum " + (int) expected + " is negative", client.conclude());
+            }
+            serverThread.join();
+        }
+        finally {
+            Log.configure(mode, 100, 1);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Tests tell whether the server is right; benchmarks tell whether a
+ * change made it faster. Each benchmark runs a few warm-up
+ * iterations, so that the JIT compiler has done its work, and then
+ * a few measured iterations of fixed duration, and reports the mean
+ * and standard deviation over the measured iterations.
+ *
+ * Usage:
+ *
+ *     make bench                          # everything
+ *     make bench parse                    # only the parser benchmarks
+ *     java -Dbench.iterations=10 -Dbench.millis=2000 -cp .:* Benchmarks latency
+ *
+ * Groups:
+ *
+ * - parse       parsing and summing lines in memory, IntLineParser
+ *               against `readLine` + `Integer.parseInt`
+ * - latency     one client, one session at a time over loopback,
+ *               with a new connection per session and with ClientPool,
+ *               and over a Unix domain socket (see Transport)
+ * - throughput  many clients at once, for several input sizes
+ *
+ * The numbers are only comparable between runs on the same machine.
+ * Logging is turned off while benchmarking.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Benchmarks {
+    static final int warmups = Integer.getInteger("bench.warmups", 3);
+    static final int iterations = Integer.getInteger("bench.iterations", 5);
+    static final long millis = Long.getLong("bench.millis", 1000);
+
+    // results are added here, so that the JIT cannot prove them unused
+    static volatile long sink;
+
+    interface Op {
+        // one operation; returns how many operations it counts for
+        long run() throws Exception;
+    }
+
+    /**
+     * Run `op` over and over for a fixed time per iteration and
+     * report operations per second.
+     */
+    static void measure(String name, Op op) throws Exception {
+        double[] rates = new double[iterations];
+        for (int i = -warmups; i < iterations; i++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(millis);
+            long now;
+            do {
+                ops += op.run();
+                now = System.nanoTime();
+            } while (now < deadline);
+            if (i >= 0)
+                rates[i] = ops * 1e9 / (now - start);
+        }
+        report(name, rates);
+    }
+
+    static void report(String name, double[] rates) {
+        double mean = 0;
+        for (double rate : rates)
+            mean += rate;
+        mean /= rates.length;
+        double variance = 0;
+        for (double rate : rates)
+            variance += (rate - mean) * (rate - mean);
+        double sd = rates.length > 1 ? Math.sqrt(variance / (rates.length - 1)) : 0;
+        System.out.println(String.format("%-44s %14.1f ops/s  +- %5.1f%%  (%.3f us/op)",
+                                         name, mean, 100 * sd / mean, 1e6 / mean));
+    }
+
+    // `n` numbers, one per line, ending with an empty line
+    static byte[] lines(int n) {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(42);
+        for (int i = 0; i < n; i++)
+            text.append(random.nextInt(2000001) - 1000000).append('\n');
+        text.append('\n');
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static int[] numbers(int n) {
+        int[] values = new int[n];
+        Random random = new Random(42);
+        for (int i = 0; i < n; i++)
+            values[i] = random.nextInt(2000001) - 1000000;
+        return values;
+    }
+
+    static void parse() throws Exception {
+        for (int n : new int[] { 1000, 100000, 10000000 }) {
+            final byte[] input = lines(n);
+
+            measure("parse/readLine+parseInt n=" + n + " (lines)", () -> {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input)));
+                    String line;
+                    int sum = 0;
+                    while ((line = reader.readLine()).length() > 0)
+                        sum += Integer.parseInt(line);
+                    sink += sum;
+                    return n;
+                });
+
+            final IntLineParser parser = new IntLineParser();
+            measure("parse/IntLineParser n=" + n + " (lines)", () -> {
+                    parser.reset();
+                    parser.parse(input, 0, input.length);
+                    sink += parser.sum();
+                    return n;
+                });
+
+            measure("parse/ByteLineReader n=" + n + " (lines)", () -> {
+                    parser.reset();
+                    new ByteLineReader(new ByteArrayInputStream(input)).readNumbers(parser);
+                    sink += parser.sum();
+                    return n;
+                });
+
+            // blocks parsed on all cores (see ParallelParser)
+            final TestableServer.SessionParser sessionParser =
+                new TestableServer.SessionParser(new PrintWriter(OutputStream.nullOutputStream()));
+            final ParallelParser parallel = new ParallelParser(ForkJoinPool.commonPool());
+            measure("parse/ParallelParser n=" + n + " (lines)", () -> {
+                    sessionParser.reset();
+                    parallel.readNumbers(new ByteLineReader(new ByteArrayInputStream(input)), sessionParser);
+                    sink += sessionParser.sum();
+                    return n;
+                });
+        }
+    }
+
+    // a ConcurrentServer on a free port, for the duration of `body`
+    interface WithServer {
+        void run(InetSocketAddress address) throws Exception;
+    }
+
+    static void withServer(int threads, WithServer body) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 1024);
+        withServer(threads, serverSocket, new InetSocketAddress("localhost", serverSocket.getLocalPort()), body);
+    }
+
+    static void withServer(int threads, ServerSocket serverSocket, InetSocketAddress address,
+                           WithServer body) throws Exception {
+        ServerOptions options = new ServerOptions();
+        options.threads = threads;
+        ConcurrentServer server = new ConcurrentServer(serverSocket, options);
+        Thread serverThread = new Thread(() -> {
+                try {
+                    server.serve();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        serverThread.start();
+        try {
+            body.run(address);
+        }
+        finally {
+            server.close();
+            serverThread.join();
+        }
+    }
+
+    static String session(InetSocketAddress address, int[] values) throws IOException {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            socket.setTcpNoDelay(true);
+            TestableClient client = new TestableClient(socket);
+            client.sendAll(values);
+            return client.conclude();
+        }
+    }
+
+    static void latency() throws Exception {
+        withServer(4, address -> {
+                for (int n : new int[] { 1, 100, 10000 }) {
+                    final int[] values = numbers(n);
+
+                    measure("latency/connect+send+conclude n=" + n, () -> {
+                            try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+                                socket.setTcpNoDelay(true);
+                                TestableClient client = new TestableClient(socket);
+                                for (int value : values)
+                                    client.send(value);
+                                sink += client.conclude().length();
+                            }
+                            return 1;
+                        });
+
+                    measure("latency/connect+sendAll+conclude n=" + n, () -> {
+                            sink += session(address, values).length();
+                            return 1;
+                        });
+
+                    try (ClientPool pool = new ClientPool(Arrays.asList(address), 1, 60000)) {
+                        measure("latency/pooled sum n=" + n, () -> {
+                                sink += pool.sum(values).length();
+                                return 1;
+                            });
+                    }
+                }
+            });
+
+        Path dir = Files.createTempDirectory("benchmarks");
+        String unix = Transport.UNIX + dir.resolve("sum.sock");
+        try {
+            withServer(4, Transport.listen(unix, 1024), null, address -> {
+                    for (int n : new int[] { 1, 100, 10000 }) {
+                        final int[] values = numbers(n);
+
+                        measure("latency/unix connect+sendAll+conclude n=" + n, () -> {
+                                try (Socket socket = Transport.connect(unix)) {
+                                    TestableClient client = new TestableClient(socket);
+                                    client.sendAll(values);
+                                    sink += client.conclude().length();
+                                }
+                                return 1;
+                            });
+                    }
+                });
+        }
+        finally {
+            Files.delete(dir);
+        }
+    }
+
+    static void throughput() throws Exception {
+        for (int clients : new int[] { 1, 8, 64 }) {
+            // a server thread per client, so that kept-alive
+            // connections do not starve each other
+            withServer(clients, address -> {
+                    for (int n : new int[] { 10, 1000 }) {
+                        final int[] values = numbers(n);
+                        ExecutorService pool = Executors.newFixedThreadPool(clients);
+                        try (ClientPool connections = new ClientPool(Arrays.asList(address), clients, 60000)) {
+                            measure(String.format("throughput/clients=%d n=%d (sessions)", clients, n), () -> {
+                                    // every client runs sessions for 10 ms
+                                    AtomicLong sessions = new AtomicLong();
+                                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+                                    List<Future<?>> running = new ArrayList<>();
+                                    for (int c = 0; c < clients; c++)
+                                        running.add(pool.submit(() -> {
+                                                    do {
+                                                        sink += connections.sum(values).length();
+                                                        sessions.incrementAndGet();
+                                                    } while (System.nanoTime() < deadline);
+                                                    return null;
+                                                }));
+                                    for (Future<?> future : running)
+                                        future.get();
+                                    return sessions.get();
+                                });
+                        }
+                        finally {
+                            pool.shutdown();
+                        }
+                    }
+                });
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Log.configure(Log.Mode.OFF, 1, 1);
+
+        List<String> groups = Arrays.asList(args.length > 0 ? args : new String[] { "parse", "latency", "throughput" });
+        for (String group : groups) {
+            switch (group) {
+            case "parse":
+                parse();
+                break;
+            case "latency":
+                latency();
+                break;
+            case "throughput":
+                throughput();
+                break;
+            default:
+                System.err.println("unknown benchmark group: " + group);
+                System.exit(1);
+            }
+        }
+    }
+}
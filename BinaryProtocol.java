@@ -0,0 +1,127 @@
+/**
+ * In the text protocol, a number like -1234567 takes 9 bytes on the
+ * wire and has to be parsed digit by digit. The binary protocol
+ * sends every number as 4 bytes and the server decodes them in bulk.
+ *
+ * A client asks for the binary protocol by sending the byte 0xFF
+ * first. No line of the text protocol can start with 0xFF (it does
+ * not even occur in UTF-8), so text clients keep working unchanged.
+ *
+ * Binary dialogue, all numbers big-endian:
+ *
+ * client: sends the byte 0xFF
+ * client: sends frames, each a 4-byte count n > 0 followed by n
+ *         4-byte integers
+ * client: sends a 4-byte count 0
+ * server: sends the 8-byte sum, which does not overflow like the
+ *         `int` sum of the text protocol
+ * client: sends 1 byte: 1 for positive, -1 for negative,
+ *         0 for neither
+ * client: closes the socket connection
+ * server: closes the socket connection
+ *
+ * Between two frames, the client may send the count -1 (PEEK) to
+ * learn the sum so far; the server answers with it as 8 bytes.
+ */
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public class BinaryProtocol {
+    // first byte sent by a binary client
+    public static final int MAGIC = 0xFF;
+
+    // most numbers per frame sent by TestableClient
+    public static final int FRAME_SIZE = 2048;
+
+    // count of a frame asking for the sum so far
+    public static final int PEEK = -1;
+
+    /**
+     * The server side of the binary dialogue, after `fromClient.peek()`
+     * has returned MAGIC.
+     *
+     * @param start	when the session started, for ServerMetrics
+     * @param maxNumbers	most numbers accepted in the session
+     */
+    public static void serve(ByteLineReader fromClient, OutputStream toClient,
+                             long start, long maxNumbers) throws IOException {
+        fromClient.pos++; // the magic byte
+
+        DataOutputStream out = new DataOutputStream(toClient);
+        long sum = readSum(fromClient, out, maxNumbers);
+
+        Log.info("sending sum = %d", sum);
+        out.writeLong(sum);
+        out.flush();
+        ServerMetrics.global.sumSent(start);
+
+        if (! fromClient.require(1))
+            throw new EOFException("connection closed before the reply");
+        int reply = fromClient.buf[fromClient.pos++];
+        Log.info("client says %d is %s", sum, replyText(reply));
+    }
+
+    /**
+     * Decode frames until the count 0, adding up all numbers, and
+     * answer PEEK frames on `out`. Every frame is recorded in
+     * WindowedStats as it ends.
+     */
+    static long readSum(ByteLineReader fromClient, DataOutputStream out,
+                        long maxNumbers) throws IOException {
+        ByteBuffer view = fromClient.view;
+        long sum = 0;
+        long numbers = 0;
+        WindowedStats.Batch batch = new WindowedStats.Batch();
+        while (true) {
+            if (! fromClient.require(4))
+                throw new EOFException("connection closed before the final frame");
+            int count = view.getInt(fromClient.pos);
+            fromClient.pos += 4;
+
+            if (count == 0)
+                return sum;
+            if (count == PEEK) {
+                out.writeLong(sum);
+                out.flush();
+                continue;
+            }
+            if (count < 0) {
+                ServerMetrics.global.parseError();
+                throw new ProtocolException("negative frame size " + count);
+            }
+            numbers += count;
+            if (numbers > maxNumbers) {
+                ServerMetrics.global.parseError();
+                throw new ProtocolException("more than " + maxNumbers + " numbers");
+            }
+            Log.info("received %d numbers", count);
+            ServerMetrics.global.linesParsed.add(count);
+
+            // decode as many whole numbers as are buffered at a time
+            while (count > 0) {
+                if (! fromClient.require(4))
+                    throw new EOFException("connection closed within a frame");
+                int available = Math.min(count, (fromClient.limit - fromClient.pos) / 4);
+                int end = fromClient.pos + available * 4;
+                for (int i = fromClient.pos; i < end; i += 4) {
+                    int value = view.getInt(i);
+                    sum += value;
+                    batch.add(value);
+                }
+                fromClient.pos = end;
+                count -= available;
+            }
+            WindowedStats.global.record(batch);
+        }
+    }
+
+    static byte replyByte(long sum) {
+        return (byte) Long.signum(sum);
+    }
+
+    static String replyText(long sum) {
+        return sum > 0 ? "positive" : sum < 0 ? "negative" : "neither positive nor negative";
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * TestableServer must answer binary clients according to
+ * BinaryProtocol, and tell them apart from text clients by the
+ * first byte alone.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.net.*;
+import java.io.*;
+
+public class BinaryProtocolTests {
+    public static final String localhost = "localhost";
+
+    // run one session of TestableServer against a TestableClient
+    String runSession(int[] input, boolean binary) throws IOException, InterruptedException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            int port = serverSocket.getLocalPort();
+
+            Thread serverThread = new Thread() {
+                    public void run() {
+                        try {
+                            TestableServer.runServer(serverSocket);
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            serverThread.start();
+
+            try (Socket socket = new Socket(localhost, port)) {
+                TestableClient client = new TestableClient(socket, binary);
+                for (int value : input)
+                    client.send(value);
+                String result = client.conclude();
+                serverThread.join();
+                return result;
+            }
+        }
+    }
+
+    @Test
+    public void test1234() throws Exception {
+        assertEquals("the sum 10 is positive", runSession(new int[] { 1, 2, 3, 4 }, true));
+    }
+
+    @Test
+    public void testEmptyInput() throws Exception {
+        assertEquals("the sum 0 is neither positive nor negative", runSession(new int[] {}, true));
+    }
+
+    @Test
+    public void testNegative() throws Exception {
+        assertEquals("the sum -4 is negative",
+                     runSession(new int[] { 1, -2, 3, -4, 5, -6, 7, -8 }, true));
+    }
+
+    @Test
+    public void testManyFrames() throws Exception {
+        // several frames, and frames split between reads of the server
+        int n = 5 * BinaryProtocol.FRAME_SIZE + 17;
+        int[] input = new int[n];
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            input[i] = i % 2 == 0 ? i : -3 * i;
+            sum += input[i];
+        }
+        assertEquals("the sum " + sum + " is negative", runSession(input, true));
+    }
+
+    @Test
+    public void testSumDoesNotOverflow() throws Exception {
+        int[] input = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE };
+        assertEquals("the sum " + 3L * Integer.MAX_VALUE + " is positive", runSession(input, true));
+
+        // while the text protocol keeps the `int` sum of the lecture
+        assertEquals("the sum " + 3 * Integer.MAX_VALUE + " is positive", runSession(input, false));
+    }
+}
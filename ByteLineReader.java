@@ -0,0 +1,322 @@
+/**
+ * A blocking byte buffer in front of an InputStream, which feeds an
+ * IntLineParser for the numbers and falls back to Strings only for
+ * the rare lines that are text, such as the client's final reply.
+ *
+ * It replaces the `BufferedReader` in TestableServer. Both must not
+ * be mixed on the same stream, because each buffers ahead.
+ */
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.InflaterInputStream;
+
+public class ByteLineReader {
+
+    public ByteLineReader(InputStream in) {
+        this(in, 8192);
+    }
+
+    public ByteLineReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+        this.view = ByteBuffer.wrap(buf);
+    }
+
+    InputStream in;
+    final byte[] buf;
+
+    // big-endian view of `buf`, for binary decoding (see BinaryProtocol)
+    final ByteBuffer view;
+
+    // buf[pos, limit) holds bytes read but not yet consumed
+    int pos = 0;
+    int limit = 0;
+
+    // true after a line ended with '\r'
+    boolean skipLF = false;
+
+    // if set, counts the bytes read (see ServerMetrics)
+    LongAdder bytesRead = null;
+
+    /**
+     * From now on, read a Deflate stream (see TestableServer.DEFLATE):
+     * the bytes not consumed yet and all bytes after them are
+     * inflated as they arrive. If the line before ended with "\r",
+     * the '\n' completing it is skipped first.
+     */
+    public void inflate() throws IOException {
+        if (skipLF) {
+            // the client sent "\r\n" before waiting for the reply
+            skipLF = false;
+            if (fill() && buf[pos] == '\n')
+                pos++;
+        }
+        InputStream rest = new SequenceInputStream(new ByteArrayInputStream(Arrays.copyOfRange(buf, pos, limit)), in);
+        in = new InflaterInputStream(new BufferedInputStream(rest, 1 << 16));
+        pos = 0;
+        limit = 0;
+    }
+
+    /**
+     * Read more bytes if all buffered bytes have been consumed.
+     *
+     * @return false at end of stream
+     */
+    boolean fill() throws IOException {
+        if (pos < limit)
+            return true;
+        int n = in.read(buf, 0, buf.length);
+        if (n < 0)
+            return false;
+        if (bytesRead != null)
+            bytesRead.add(n);
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    /**
+     * Read bytes into b[off, off + len), first those buffered, like
+     * `InputStream.read`. For callers that take over the stream for a
+     * while with buffers of their own (see ParallelParser).
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (pos < limit) {
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        int n = in.read(b, off, len);
+        if (n > 0 && bytesRead != null)
+            bytesRead.add(n);
+        return n;
+    }
+
+    /**
+     * How many bytes can be read without blocking, or an estimate
+     * like that of `InputStream.available`.
+     */
+    public int available() throws IOException {
+        return limit - pos + in.available();
+    }
+
+    /**
+     * Put back bytes read with `read` but not consumed after all, so
+     * that they are read again before the ones buffered and the rest
+     * of the stream. Bytes put back by several calls go into one
+     * buffer in front of the stream, the last call's first.
+     */
+    public void unread(byte[] b, int off, int len) {
+        if (len == 0)
+            return;
+        if (! (in instanceof Pushback))
+            in = new Pushback(in);
+        Pushback pushback = (Pushback) in;
+        pushback.unread(buf, pos, limit - pos);
+        pushback.unread(b, off, len);
+        // counted once already
+        if (bytesRead != null)
+            bytesRead.add(-(len + limit - pos));
+        pos = 0;
+        limit = 0;
+    }
+
+    // bytes put back by `unread`, read before the rest of the stream
+    static class Pushback extends FilterInputStream {
+        Pushback(InputStream in) {
+            super(in);
+        }
+
+        // bytes[start, bytes.length) come first; filled from the end,
+        // so that putting bytes in front of them copies only those
+        byte[] bytes = new byte[0];
+        int start = 0;
+
+        void unread(byte[] b, int off, int len) {
+            if (len > start) {
+                int length = bytes.length - start;
+                byte[] grown = new byte[Math.max(2 * bytes.length, length + len)];
+                System.arraycopy(bytes, start, grown, grown.length - length, length);
+                bytes = grown;
+                start = grown.length - length;
+            }
+            start -= len;
+            System.arraycopy(b, off, bytes, start, len);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (start == bytes.length)
+                return in.read();
+            int b = bytes[start] & 0xff;
+            consume(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (start == bytes.length)
+                return in.read(b, off, len);
+            int n = Math.min(len, bytes.length - start);
+            System.arraycopy(bytes, start, b, off, n);
+            consume(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (start == bytes.length)
+                return in.skip(n);
+            int skipped = (int) Math.max(0, Math.min(n, bytes.length - start));
+            consume(skipped);
+            return skipped;
+        }
+
+        void consume(int n) {
+            start += n;
+            if (start == bytes.length) {
+                // a connection may last long after a large upload
+                bytes = new byte[0];
+                start = 0;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return bytes.length - start + in.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Make sure that at least `n` unconsumed bytes are buffered,
+     * moving them to the start of the buffer if needed.
+     *
+     * @return false if the stream ends before
+     */
+    boolean require(int n) throws IOException {
+        if (n > buf.length)
+            throw new IllegalArgumentException("buffer too small for " + n + " bytes");
+        if (limit - pos >= n)
+            return true;
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        while (limit < n) {
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0)
+                return false;
+            if (bytesRead != null)
+                bytesRead.add(read);
+            limit += read;
+        }
+        return true;
+    }
+
+    /**
+     * Look at the next byte without consuming it.
+     *
+     * @return the byte as an int in 0..255, or -1 at end of stream
+     */
+    public int peek() throws IOException {
+        if (skipLF) {
+            // a '\n' completing an earlier "\r" is not part of what comes next
+            if (! fill())
+                return -1;
+            skipLF = false;
+            if (buf[pos] == '\n')
+                pos++;
+        }
+        return fill() ? buf[pos] & 0xff : -1;
+    }
+
+    /**
+     * Feed lines to `parser` until the empty line ending the numbers.
+     *
+     * @throws EOFException if the stream ends before the empty line
+     * @throws NumberFormatException on a line that is not an int
+     */
+    public void readNumbers(IntLineParser parser) throws IOException {
+        parser.skipLF = skipLF;
+        skipLF = false;
+        while (true) {
+            if (! fill())
+                throw new EOFException("connection closed before the empty line");
+            int end = parser.parse(buf, pos, limit);
+            if (end >= 0) {
+                pos = end;
+                skipLF = parser.skipLF;
+                parser.skipLF = false;
+                return;
+            }
+            pos = limit;
+        }
+    }
+
+    /**
+     * Read a line of text, like `BufferedReader.readLine()`.
+     *
+     * @return the line without its terminator, or null at end of stream
+     */
+    public String readLine() throws IOException {
+        return readLine(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like `readLine()`, for lines of at most `max` bytes. A server
+     * reading what a client sends must not buffer an endless line.
+     *
+     * @throws ProtocolException once the line is longer
+     */
+    public String readLine(int max) throws IOException {
+        ByteArrayOutputStream line = null;
+        while (fill()) {
+            if (skipLF) {
+                skipLF = false;
+                if (buf[pos] == '\n' && ++pos == limit)
+                    continue;
+            }
+
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n' && buf[pos] != '\r')
+                pos++;
+            if ((line == null ? 0 : line.size()) + pos - start > max)
+                throw new ProtocolException("line longer than " + max + " bytes");
+
+            if (pos < limit) {
+                // found the terminator
+                String text;
+                if (line == null) {
+                    text = new String(buf, start, pos - start, StandardCharsets.UTF_8);
+                }
+                else {
+                    line.write(buf, start, pos - start);
+                    text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                }
+                skipLF = buf[pos] == '\r';
+                pos++;
+                return text;
+            }
+
+            // the line continues beyond the buffer
+            if (line == null)
+                line = new ByteArrayOutputStream();
+            line.write(buf, start, pos - start);
+        }
+
+        // end of stream: the last line may lack a terminator
+        return line == null ? null : new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * When a connection drops in the middle of a long upload, the sum of
+ * the numbers received so far dies with the session. A client that
+ * names its dialogue with "resume <id>" (see TestableServer.RESUME)
+ * has the server keep a checkpoint of it instead: the sum and the
+ * number of numbers received, so that the client can reconnect and
+ * continue from there rather than from the first number.
+ *
+ * Checkpoints live in memory only. They are kept for `ttlMillis`
+ * after the connection dropped, and at most `capacity` of them;
+ * beyond that, the least recently saved one is forgotten. A client
+ * that finds no checkpoint starts again from offset 0, which is
+ * always correct, only slower.
+ *
+ * All methods are thread-safe.
+ */
+
+import java.util.*;
+
+public class Checkpoints {
+    // shared by all sessions of TestableServer
+    public static final Checkpoints global = new Checkpoints(10000, 10 * 60 * 1000);
+
+    /**
+     * @param capacity	most checkpoints kept
+     * @param ttlMillis	how long a checkpoint is kept
+     */
+    public Checkpoints(int capacity, long ttlMillis) {
+        configure(capacity, ttlMillis);
+    }
+
+    static class Checkpoint {
+        Checkpoint(int sum, long count) {
+            this.sum = sum;
+            this.count = count;
+            this.saved = System.nanoTime();
+        }
+
+        final int sum;
+        final long count;
+        final long saved;
+    }
+
+    int capacity;
+    long ttlNanos;
+
+    // in access order, so that the eldest entry is the one to evict
+    final LinkedHashMap<String, Checkpoint> checkpoints = new LinkedHashMap<String, Checkpoint>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Checkpoint> eldest) {
+                return size() > capacity;
+            }
+        };
+
+    public synchronized void configure(int capacity, long ttlMillis) {
+        if (capacity <= 0 || ttlMillis <= 0)
+            throw new IllegalArgumentException("capacity and ttlMillis must be positive");
+        this.capacity = capacity;
+        this.ttlNanos = ttlMillis * 1000000;
+        expire();
+    }
+
+    /**
+     * Remember the state of the dialogue `id`.
+     */
+    public synchronized void save(String id, int sum, long count) {
+        checkpoints.put(id, new Checkpoint(sum, count));
+        expire();
+    }
+
+    /**
+     * Forget the dialogue `id` and return its state, if it has one.
+     * A checkpoint is handed to one session only, so that two
+     * connections cannot continue the same dialogue.
+     */
+    public synchronized Checkpoint take(String id) {
+        expire();
+        return checkpoints.remove(id);
+    }
+
+    /** Whether there is a checkpoint of `id`. */
+    public synchronized boolean contains(String id) {
+        expire();
+        return checkpoints.containsKey(id);
+    }
+
+    public synchronized int size() {
+        expire();
+        return checkpoints.size();
+    }
+
+    // entries are only ever accessed by `take`, which removes them,
+    // so the access order is the order in which they were saved
+    void expire() {
+        long now = System.nanoTime();
+        Iterator<Checkpoint> it = checkpoints.values().iterator();
+        while (it.hasNext() && now - it.next().saved > ttlNanos)
+            it.remove();
+        while (checkpoints.size() > capacity)
+            checkpoints.remove(checkpoints.keySet().iterator().next());
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Opening a connection for every sum costs a TCP handshake, which
+ * for small sums takes longer than the sum itself. ClientPool keeps
+ * kept-alive connections to one or more servers and lends them out
+ * as ready TestableClients:
+ *
+ *     ClientPool pool = new ClientPool(servers, 8, 30000);
+ *     TestableClient client = pool.borrow();
+ *     try {
+ *         client.sendAll(numbers);
+ *         client.conclude();
+ *         pool.release(client);
+ *     }
+ *     catch (IOException e) {
+ *         pool.invalidate(client);
+ *         throw e;
+ *     }
+ *
+ * or simply `pool.sum(numbers)`, which does the above.
+ *
+ * Servers are used round robin. A server that does not agree to
+ * keep-alive (see TestableServer.KEEP_ALIVE) still works, with a
+ * new connection for every session. A background thread closes
+ * connections that were idle for too long or that the server closed.
+ *
+ * All methods are thread-safe.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class ClientPool implements Closeable {
+
+    /**
+     * @param servers			where to connect, used round robin
+     * @param maxIdlePerServer	idle connections kept per server at most
+     * @param idleTimeoutMillis	idle connections are closed after this long
+     */
+    public ClientPool(List<InetSocketAddress> servers, int maxIdlePerServer, long idleTimeoutMillis) {
+        if (servers.isEmpty())
+            throw new IllegalArgumentException("no servers");
+        if (maxIdlePerServer <= 0 || idleTimeoutMillis <= 0)
+            throw new IllegalArgumentException("maxIdlePerServer and idleTimeoutMillis must be positive");
+
+        this.servers = new Server[servers.size()];
+        for (int i = 0; i < this.servers.length; i++)
+            this.servers[i] = new Server(servers.get(i), maxIdlePerServer);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "client-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        long period = Math.max(1, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    final Server[] servers;
+    final long idleTimeoutMillis;
+    final ScheduledExecutorService evictor;
+    final AtomicInteger next = new AtomicInteger();
+    volatile boolean closed = false;
+
+    // lent-out clients and where they are connected to
+    final Map<TestableClient, Server> borrowed = new ConcurrentHashMap<>();
+
+    static class Server {
+        Server(InetSocketAddress address, int maxIdle) {
+            this.address = address;
+            this.idle = new LinkedBlockingDeque<>(maxIdle);
+        }
+
+        final InetSocketAddress address;
+
+        // most recently used first
+        final LinkedBlockingDeque<Idle> idle;
+
+        // cleared when the server refuses keep-alive
+        volatile boolean keepAlive = true;
+    }
+
+    static class Idle {
+        Idle(TestableClient client) {
+            this.client = client;
+            this.since = System.nanoTime();
+        }
+
+        final TestableClient client;
+        final long since;
+    }
+
+    /**
+     * Lend out a client ready for a new session, reusing an idle
+     * connection if there is one.
+     */
+    public TestableClient borrow() throws IOException {
+        return borrow(next.getAndIncrement());
+    }
+
+    /**
+     * Like `borrow()`, but connected to a given server.
+     *
+     * @param index	position of the server in the list given to the
+     *              constructor, modulo the number of servers
+     */
+    public TestableClient borrow(int index) throws IOException {
+        if (closed)
+            throw new IllegalStateException("pool is closed");
+
+        Server server = servers[Math.floorMod(index, servers.length)];
+        Idle idle;
+        while ((idle = server.idle.pollFirst()) != null) {
+            if (! idle.client.socket.isClosed()) {
+                borrowed.put(idle.client, server);
+                return idle.client;
+            }
+        }
+
+        TestableClient client = connect(server);
+        borrowed.put(client, server);
+        return client;
+    }
+
+    /**
+     * Like `borrow(index)`, but always on a new connection, for a
+     * caller whose pooled connection turned out to be closed by the
+     * server.
+     */
+    public TestableClient borrowNew(int index) throws IOException {
+        if (closed)
+            throw new IllegalStateException("pool is closed");
+
+        Server server = servers[Math.floorMod(index, servers.length)];
+        TestableClient client = connect(server);
+        borrowed.put(client, server);
+        return client;
+    }
+
+    TestableClient connect(Server server) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(server.address);
+            TestableClient client = new TestableClient(socket);
+            if (! server.keepAlive || client.keepAlive())
+                return client;
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        // the server does not keep connections alive; don't ask again
+        socket.close();
+        server.keepAlive = false;
+        return connect(server);
+    }
+
+    /**
+     * Give back a client whose session was concluded. Its connection
+     * is kept for the next `borrow()` if possible, closed otherwise.
+     */
+    public void release(TestableClient client) {
+        Server server = borrowed.remove(client);
+        if (server == null)
+            throw new IllegalArgumentException("client was not borrowed from this pool");
+
+        if (closed || ! client.keepAlive || ! client.concluded || client.socket.isClosed()) {
+            closeQuietly(client);
+            return;
+        }
+        client.nextSession();
+        if (! server.idle.offerFirst(new Idle(client)))
+            closeQuietly(client); // enough idle connections already
+    }
+
+    /**
+     * Give back a client whose connection failed or is in an unknown
+     * state. Its connection is closed.
+     */
+    public void invalidate(TestableClient client) {
+        borrowed.remove(client);
+        closeQuietly(client);
+    }
+
+    /**
+     * Run one session on a pooled connection.
+     *
+     * @return what `TestableClient.conclude()` returns
+     */
+    public String sum(int[] values) throws IOException {
+        TestableClient client = borrow();
+        try {
+            client.sendAll(values);
+            String result = client.conclude();
+            release(client);
+            return result;
+        }
+        catch (IOException e) {
+            invalidate(client);
+            throw e;
+        }
+    }
+
+    /** Number of idle connections, over all servers. */
+    public int idleConnections() {
+        int n = 0;
+        for (Server server : servers)
+            n += server.idle.size();
+        return n;
+    }
+
+    // close idle connections that timed out or were closed by the server
+    void evict() {
+        long now = System.nanoTime();
+        for (Server server : servers) {
+            // a copy, because healthy connections are put back
+            for (Idle idle : server.idle.toArray(new Idle[0])) {
+                // take the connection out first, so that nobody borrows
+                // it while we look at it
+                if (! server.idle.removeFirstOccurrence(idle))
+                    continue;
+                boolean expired = now - idle.since > TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+                if (expired || isBroken(idle.client.socket) || ! server.idle.offerLast(idle))
+                    closeQuietly(idle.client);
+            }
+        }
+    }
+
+    // An idle connection must not have anything to read; end of
+    // stream means the server has closed it.
+    static boolean isBroken(Socket socket) {
+        if (socket.isClosed())
+            return true;
+        try {
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                socket.getInputStream().read();
+                return true; // end of stream, or bytes nobody asked for
+            }
+            catch (SocketTimeoutException e) {
+                return false; // nothing to read: healthy
+            }
+            finally {
+                socket.setSoTimeout(timeout);
+            }
+        }
+        catch (IOException e) {
+            return true;
+        }
+    }
+
+    static void closeQuietly(TestableClient client) {
+        try {
+            client.socket.close();
+        }
+        catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Close all idle connections. Borrowed clients are closed when
+     * they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Server server : servers) {
+            Idle idle;
+            while ((idle = server.idle.pollFirst()) != null)
+                closeQuietly(idle.client);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * ClientPool must reuse connections to servers that keep them
+ * alive, and still work with servers that don't.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// evicts idle connections after 50 ms, which parallel tests would stretch
+@ParallelRunner.Alone
+public class ClientPoolTests {
+    final static String localhost = "localhost";
+
+    List<ConcurrentServer> servers = new ArrayList<>();
+    List<Thread>           serverThreads = new ArrayList<>();
+    List<InetSocketAddress> addresses = new ArrayList<>();
+
+    @Before
+    public void startServers() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            ServerSocket serverSocket = new ServerSocket(0);
+            addresses.add(new InetSocketAddress(localhost, serverSocket.getLocalPort()));
+            // every kept-alive connection occupies a server thread,
+            // so there must be more threads than pooled connections
+            ServerOptions options = new ServerOptions();
+            options.threads = 64;
+            final ConcurrentServer server = new ConcurrentServer(serverSocket, options);
+            Thread serverThread = new Thread() {
+                    public void run() {
+                        try {
+                            server.serve();
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            serverThread.start();
+            servers.add(server);
+            serverThreads.add(serverThread);
+        }
+    }
+
+    @After
+    public void stopServers() throws Exception {
+        for (ConcurrentServer server : servers)
+            server.close();
+        for (Thread serverThread : serverThreads)
+            serverThread.join();
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        try (ClientPool pool = new ClientPool(addresses, 4, 60000)) {
+            for (int k = 1; k <= 20; k++)
+                assertEquals("the sum " + (2 * k) + " is positive", pool.sum(new int[] { k, k }));
+
+            // one connection per server, used over and over
+            assertEquals(2, pool.idleConnections());
+            assertEquals(2, servers.get(0).activeSessions() + servers.get(1).activeSessions());
+        }
+    }
+
+    @Test
+    public void testConcurrentBorrowers() throws Exception {
+        try (ClientPool pool = new ClientPool(addresses, 8, 60000)) {
+            ExecutorService threads = Executors.newFixedThreadPool(16);
+            List<Future<String>> results = new ArrayList<>();
+            for (int k = 0; k < 500; k++) {
+                final int n = k;
+                results.add(threads.submit(() -> pool.sum(new int[] { n, -1 })));
+            }
+            for (int k = 0; k < 500; k++) {
+                String result = results.get(k).get(10, TimeUnit.SECONDS);
+                assertTrue(result, result.startsWith("the sum " + (k - 1) + " "));
+            }
+            threads.shutdown();
+            assertTrue(pool.idleConnections() <= 16);
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsAreEvicted() throws Exception {
+        try (ClientPool pool = new ClientPool(addresses, 4, 50)) {
+            pool.sum(new int[] { 1 });
+            assertEquals(1, pool.idleConnections());
+            Thread.sleep(300);
+            assertEquals(0, pool.idleConnections());
+        }
+    }
+
+    @Test
+    public void testBrokenConnectionsAreEvicted() throws Exception {
+        // a server that closes kept-alive connections after one session
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread serverThread = new Thread() {
+                    public void run() {
+                        try (Socket socket = serverSocket.accept()) {
+                            BufferedReader fromClient = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                            PrintWriter toClient = new PrintWriter(socket.getOutputStream(), true);
+                            assertEquals(TestableServer.KEEP_ALIVE, fromClient.readLine());
+                            toClient.println(TestableServer.KEEP_ALIVE);
+                            assertEquals("", fromClient.readLine());
+                            toClient.println(0);
+                            assertEquals("neither positive nor negative", fromClient.readLine());
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            serverThread.start();
+
+            InetSocketAddress address = new InetSocketAddress(localhost, serverSocket.getLocalPort());
+            try (ClientPool pool = new ClientPool(Arrays.asList(address), 4, 60000)) {
+                assertEquals("the sum 0 is neither positive nor negative", pool.sum(new int[] {}));
+                assertEquals(1, pool.idleConnections());
+
+                serverThread.join();
+                pool.evict();
+                assertEquals(0, pool.idleConnections());
+            }
+        }
+    }
+
+    @Test
+    public void testServerWithoutKeepAlive() throws Exception {
+        // the single-session TestableServer of the lecture
+        ServerSocket serverSocket = new ServerSocket(0);
+        Thread serverThread = new Thread() {
+                public void run() {
+                    try {
+                        while (true)
+                            TestableServer.runServer(serverSocket);
+                    }
+                    catch (IOException e) {
+                        // server socket closed
+                    }
+                }
+            };
+        serverThread.start();
+        try {
+            // pretend that it does not know keep-alive either
+            InetSocketAddress address = new InetSocketAddress(localhost, serverSocket.getLocalPort());
+            try (ClientPool pool = new ClientPool(Arrays.asList(address), 4, 60000)) {
+                pool.servers[0].keepAlive = false;
+                assertEquals("the sum 3 is positive", pool.sum(new int[] { 1, 2 }));
+                assertEquals("the sum -3 is negative", pool.sum(new int[] { -1, -2 }));
+                assertEquals(0, pool.idleConnections());
+            }
+        }
+        finally {
+            serverSocket.close();
+            serverThread.join();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * A client that compresses its numbers with `TestableClient.compress`
+ * must get the same sums as one that does not, in both protocols and
+ * with every flush policy, while sending far fewer bytes when the
+ * numbers repeat.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class CompressionTests {
+    @ClassRule
+    public static final ServerFixture server = ServerFixture.shared();
+
+    Log.Mode mode;
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+    }
+
+    @After
+    public void restore() {
+        Log.configure(mode, 100, 1);
+    }
+
+    // a connection to the shared server that counts the bytes the
+    // client writes to it, after compression
+    Socket countingSocket(AtomicLong written) throws IOException {
+        InetSocketAddress address = server.address();
+        Socket socket = new Socket(address.getAddress(), address.getPort()) {
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    return new FilterOutputStream(super.getOutputStream()) {
+                        @Override
+                        public void write(int b) throws IOException {
+                            out.write(b);
+                            written.incrementAndGet();
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                            written.addAndGet(len);
+                        }
+                    };
+                }
+            };
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    // bytes sent for a repetitive dump of `values`, with or without compression
+    long upload(int[] values, boolean compress) throws IOException {
+        AtomicLong written = new AtomicLong();
+        try (Socket socket = countingSocket(written)) {
+            TestableClient client = new TestableClient(socket);
+            if (compress)
+                assertTrue(client.compress(Deflater.DEFAULT_COMPRESSION, false));
+            client.sendAll(values);
+            assertEquals("the sum 0 is neither positive nor negative", client.conclude());
+        }
+        return written.get();
+    }
+
+    @Test
+    public void testText() throws Exception {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            assertTrue(client.compress(Deflater.BEST_SPEED, true));
+            client.send(1);
+            client.send(2);
+            client.sendAll(new int[] { 3, 4, 5 });
+            assertEquals("the sum 15 is positive", client.conclude());
+        }
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket, true);
+            assertTrue(client.compress(Deflater.BEST_COMPRESSION, false));
+            client.sendAll(new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, -7 });
+            assertEquals("the sum 4294967287 is positive", client.conclude());
+        }
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            assertTrue(client.keepAlive());
+            assertTrue(client.compress(Deflater.DEFAULT_COMPRESSION, false));
+            for (int session = 1; session <= 3; session++) {
+                client.sendAll(new int[] { session, -2 * session });
+                assertEquals("the sum " + -session + " is negative", client.conclude());
+                client.nextSession();
+            }
+        }
+    }
+
+    @Test
+    public void testKeepAliveAfterCompress() throws Exception {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            assertTrue(client.compress(Deflater.DEFAULT_COMPRESSION, true));
+            try {
+                client.keepAlive();
+                fail("keepAlive() after compress()");
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testPeekSum() throws Exception {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            // without flushing every line, `peekSum` must still flush
+            assertTrue(client.compress(Deflater.DEFAULT_COMPRESSION, false));
+            client.sendAll(new int[] { 10, 20 });
+            client.send(30);
+            assertEquals(60, client.peekSum());
+            client.send(-100);
+            assertEquals("the sum -40 is negative", client.conclude());
+        }
+    }
+
+    // bytes sent for `lines` numbers sent one by one, all concluded
+    long sendLines(int lines, boolean flushEveryLine) throws IOException {
+        AtomicLong written = new AtomicLong();
+        try (Socket socket = countingSocket(written)) {
+            TestableClient client = new TestableClient(socket);
+            assertTrue(client.compress(Deflater.DEFAULT_COMPRESSION, flushEveryLine));
+            for (int i = 0; i < lines; i++)
+                client.send(i % 2 == 0 ? 7 : -7);
+            assertEquals("the sum 0 is neither positive nor negative", client.conclude());
+        }
+        return written.get();
+    }
+
+    @Test
+    public void testSendWithoutFlush() throws Exception {
+        // every flush of the compressed stream costs a few bytes
+        long flushed = sendLines(1000, true);
+        long unflushed = sendLines(1000, false);
+        assertTrue("flushed " + flushed + ", unflushed " + unflushed, 10 * unflushed < flushed);
+    }
+
+    @Test
+    public void testCarriageReturn() throws Exception {
+        // a client that ends the request with "\r\n"
+        try (Socket socket = server.connect()) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write((TestableServer.DEFLATE + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals(TestableServer.DEFLATE, in.readLine());
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, true);
+            deflated.write("1\n2\n\n".getBytes(StandardCharsets.UTF_8));
+            deflated.flush();
+            assertEquals("3", in.readLine());
+            deflated.write("positive\n".getBytes(StandardCharsets.UTF_8));
+            deflated.finish();
+        }
+    }
+
+    @Test
+    public void testBadLevel() throws Exception {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            try {
+                client.compress(10, true);
+                fail("compress() with level 10");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+            // nothing was sent, so the connection is still usable
+            client.sendAll(new int[] { 1, 2 });
+            assertEquals("the sum 3 is positive", client.conclude());
+        }
+    }
+
+    @Test
+    public void testRatio() throws Exception {
+        // a numeric dump that repeats itself every 10 values, in pairs
+        // that cancel out
+        int[] values = new int[200000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = (i % 2 == 0 ? 1 : -1) * (123450 + i / 2 % 5);
+        long raw = upload(values, false);
+        long compressed = upload(values, true);
+        assertTrue("raw " + raw + ", compressed " + compressed, raw > 5 * compressed);
+    }
+
+    @Test
+    public void testRefused() throws Exception {
+        // a server that predates compression
+        try (ServerSocket old = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread thread = new Thread(() -> {
+                    try (Socket s = old.accept()) {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                        in.readLine();
+                        s.getOutputStream().write("unexpected character\n".getBytes(StandardCharsets.UTF_8));
+                    }
+                    catch (IOException e) {
+                        // the test fails on the client's side
+                    }
+                });
+            thread.start();
+            try (Socket socket = new Socket(old.getInetAddress(), old.getLocalPort())) {
+                socket.setSoTimeout(10000);
+                assertFalse(new TestableClient(socket).compress(Deflater.DEFAULT_COMPRESSION, true));
+            }
+            thread.join();
+        }
+    }
+}
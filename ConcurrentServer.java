@@ -0,0 +1,387 @@
+/**
+ * TestableServer serves 1 client and returns. A production server
+ * keeps accepting: every accepted socket becomes a session that
+ * runs `TestableServer.serveClient` on an executor, while the
+ * accepting thread goes straight back to `accept()`.
+ *
+ * The number of sessions served at the same time is bounded by
+ * `ServerOptions.maxSessions`. When the bound is reached, the
+ * accept loop waits for a session to finish before accepting the
+ * next connection, so that excess clients queue up in the kernel's
+ * accept backlog instead of in our heap. With
+ * `ServerOptions.rejectWhenFull`, excess clients are accepted and
+ * told at once that the server is busy, so that they can go
+ * elsewhere, and the clients being served keep their latency.
+ *
+ * Stalled and idle clients are dropped after the timeouts of
+ * ServerOptions, so that they cannot pin threads forever.
+ *
+ * A single accepting thread handles a burst of new connections one
+ * after the other. With `ServerOptions.acceptors` > 1, `listen`
+ * opens that many server sockets on the same port with
+ * SO_REUSEPORT, and every one of them gets an accepting thread of
+ * its own. Linux then spreads incoming connections over the
+ * sockets by a hash of their addresses. (Other systems may accept
+ * the option without spreading anything.) All accepting threads
+ * share the executor and the bound on sessions.
+ *
+ * Usage:
+ *
+ *     java -cp .:* ConcurrentServer <port-number> [options]
+ *     java -cp .:* ConcurrentServer unix:<path> [options]
+ *
+ * (see Transport for Unix domain sockets)
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.JMException;
+
+public class ConcurrentServer implements Closeable {
+
+    /**
+     * @param serverSocket	a bound server socket; closing the
+     *                      ConcurrentServer closes it
+     * @param options		concurrency settings
+     */
+    public ConcurrentServer(ServerSocket serverSocket, ServerOptions options) {
+        this(Arrays.asList(serverSocket), options);
+    }
+
+    /**
+     * @param serverSockets	bound server sockets, usually sharing one
+     *                      port (see `listen`); each is accepted from
+     *                      on a thread of its own, and closing the
+     *                      ConcurrentServer closes them all
+     * @param options		concurrency settings
+     */
+    public ConcurrentServer(List<ServerSocket> serverSockets, ServerOptions options) {
+        this.serverSockets = new ArrayList<>(serverSockets);
+        this.serverSocket = serverSockets.get(0);
+        this.acceptedBy = new AtomicLongArray(serverSockets.size());
+        this.options = options;
+        this.permits = new Semaphore(options.maxSessions);
+        this.executor = newExecutor(options);
+    }
+
+    /**
+     * Open `options.acceptors` server sockets bound to the same
+     * address and port, with SO_REUSEPORT if there are several.
+     *
+     * @param address	local address, or null for all interfaces
+     * @param port		port number, or 0 for any free port
+     */
+    public static List<ServerSocket> listen(InetAddress address, int port,
+                                            ServerOptions options) throws IOException {
+        List<ServerSocket> serverSockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < options.acceptors; i++) {
+                ServerSocket serverSocket = new ServerSocket();
+                serverSockets.add(serverSocket);
+                if (options.acceptors > 1) {
+                    if (! serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                        throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+                    serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                serverSocket.bind(new InetSocketAddress(address, port), options.backlog);
+                // the others join the port the first one got
+                port = serverSocket.getLocalPort();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            for (ServerSocket serverSocket : serverSockets)
+                serverSocket.close();
+            throw e;
+        }
+        return serverSockets;
+    }
+
+    // the first of `serverSockets`
+    final ServerSocket serverSocket;
+    final List<ServerSocket> serverSockets;
+    final ServerOptions options;
+    final Semaphore permits;
+    final ExecutorService executor;
+
+    final AtomicInteger activeSessions = new AtomicInteger();
+    final AtomicLong completedSessions = new AtomicLong();
+    final AtomicLong failedSessions = new AtomicLong();
+    final AtomicLong rejectedConnections = new AtomicLong();
+
+    // connections accepted on each of `serverSockets`
+    final AtomicLongArray acceptedBy;
+
+    /** Number of sessions being served right now. */
+    public int activeSessions() {
+        return activeSessions.get();
+    }
+
+    /** Number of sessions that ran to the end of the dialogue. */
+    public long completedSessions() {
+        return completedSessions.get();
+    }
+
+    /** Number of sessions that ended with an exception. */
+    public long failedSessions() {
+        return failedSessions.get();
+    }
+
+    /** Number of connections turned away with TestableServer.BUSY. */
+    public long rejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    /** Number of connections accepted on the `acceptor`th server socket. */
+    public long acceptedConnections(int acceptor) {
+        return acceptedBy.get(acceptor);
+    }
+
+    /**
+     * Accept and serve clients until the server sockets are closed.
+     * The first server socket is accepted from on the calling thread,
+     * every other one on a thread of its own. If any of them fails,
+     * all are closed.
+     */
+    public void serve() throws IOException {
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Thread> acceptors = new ArrayList<>();
+        for (int i = 1; i < serverSockets.size(); i++) {
+            final int acceptor = i;
+            Thread thread = new Thread("acceptor-" + i) {
+                    public void run() {
+                        try {
+                            accept(acceptor);
+                        }
+                        catch (IOException e) {
+                            failure.compareAndSet(null, e);
+                            closeQuietly();
+                        }
+                    }
+                };
+            thread.start();
+            acceptors.add(thread);
+        }
+
+        try {
+            accept(0);
+        }
+        catch (IOException e) {
+            failure.compareAndSet(null, e);
+            closeQuietly();
+        }
+        finally {
+            // the first loop also ends when interrupted; stop the others
+            for (ServerSocket serverSocket : serverSockets.subList(1, serverSockets.size())) {
+                try {
+                    serverSocket.close();
+                }
+                catch (IOException e) {
+                    // closing anyway
+                }
+            }
+            try {
+                for (Thread thread : acceptors)
+                    thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor.shutdown();
+        }
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+    // the accept loop of the `acceptor`th server socket
+    void accept(int acceptor) throws IOException {
+        ServerSocket serverSocket = serverSockets.get(acceptor);
+        try {
+            while (! serverSocket.isClosed()) {
+                Socket socket;
+                if (options.rejectWhenFull) {
+                    try {
+                        socket = serverSocket.accept();
+                    }
+                    catch (IOException e) {
+                        if (serverSocket.isClosed())
+                            break; // close() was called
+                        throw e;
+                    }
+                    acceptedBy.incrementAndGet(acceptor);
+                    if (! permits.tryAcquire()) {
+                        reject(socket);
+                        continue;
+                    }
+                }
+                else {
+                    // poll, so that close() is noticed even when all
+                    // permits are taken
+                    if (! permits.tryAcquire(100, TimeUnit.MILLISECONDS))
+                        continue;
+                    try {
+                        socket = serverSocket.accept();
+                    }
+                    catch (IOException e) {
+                        permits.release();
+                        if (serverSocket.isClosed())
+                            break; // close() was called
+                        throw e;
+                    }
+                    acceptedBy.incrementAndGet(acceptor);
+                }
+                activeSessions.incrementAndGet();
+                try {
+                    executor.execute(() -> runSession(socket));
+                }
+                catch (RejectedExecutionException e) {
+                    // close() shut the executor down under our feet
+                    socket.close();
+                    endSession(false);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // tell the client to go away, without waiting for anything it
+    // sends; the line fits into an empty socket buffer, so writing
+    // it does not block the accept loop
+    void reject(Socket socket) {
+        ServerMetrics.global.rejectedConnections.increment();
+        rejectedConnections.incrementAndGet();
+        try (Socket s = socket) {
+            OutputStream out = s.getOutputStream();
+            out.write((TestableServer.BUSY + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        catch (IOException e) {
+            // the client is gone already
+        }
+    }
+
+    void runSession(Socket socket) {
+        boolean ok = false;
+        try (Socket s = socket) {
+            TestableServer.serveClient(s, options);
+            ok = true;
+        }
+        catch (IOException | RuntimeException e) {
+            System.err.println("session failed: " + e);
+        }
+        finally {
+            endSession(ok);
+        }
+    }
+
+    void endSession(boolean ok) {
+        if (ok)
+            completedSessions.incrementAndGet();
+        else
+            failedSessions.incrementAndGet();
+        activeSessions.decrementAndGet();
+        permits.release();
+    }
+
+    /**
+     * Stop accepting. Sessions in progress are allowed to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            }
+            catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        executor.shutdown();
+        if (failure != null)
+            throw failure;
+    }
+
+    void closeQuietly() {
+        try {
+            close();
+        }
+        catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Wait until all sessions accepted so far have ended.
+     * Only meaningful after `close()`.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    static ExecutorService newExecutor(ServerOptions options) {
+        if (options.virtualThreads) {
+            // looked up reflectively, so that this file still compiles
+            // and runs on Java versions without virtual threads
+            try {
+                return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            }
+            catch (ReflectiveOperationException e) {
+                System.err.println("virtual threads unavailable, using " +
+                                   options.threads + " platform threads");
+            }
+        }
+        return Executors.newFixedThreadPool(options.threads);
+    }
+
+    public static void main(String[] args) throws IOException, JMException {
+        if (args.length < 1) {
+            System.err.println("Usage: java ConcurrentServer <port-number> | unix:<path> [options]");
+            System.err.print(ServerOptions.usage);
+            System.exit(1);
+        }
+
+        if (! Transport.isUnix(args[0]) && Integer.parseInt(args[0]) == 0)
+            throw new IllegalArgumentException("port must be nonzero");
+
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+        ServerOptions options = ServerOptions.parse(rest);
+
+        Checkpoints.global.configure(options.maxCheckpoints, options.checkpointTtlMillis);
+        Accumulators.global.configure(options.maxCounters);
+        WriteAheadLog log = options.walDir == null ? null
+            : WriteAheadLog.open(Paths.get(options.walDir), Accumulators.global, options.walSegmentBytes);
+
+        // the log's writer thread keeps the JVM alive until it is closed
+        try {
+            ServerMetrics.global.registerMBean();
+            if (options.adminPort > 0)
+                ServerMetrics.global.startAdminEndpoint(options.adminPort);
+
+            List<ServerSocket> serverSockets;
+            if (! Transport.isUnix(args[0]))
+                serverSockets = listen(null, Integer.parseInt(args[0]), options);
+            else if (options.acceptors == 1)
+                serverSockets = Arrays.asList(Transport.listen(args[0], options.backlog));
+            else
+                throw new IllegalArgumentException("--acceptors needs a TCP port");
+
+            try (ConcurrentServer server = new ConcurrentServer(serverSockets, options)) {
+                server.serve();
+            }
+        }
+        finally {
+            if (log != null)
+                log.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * ConcurrentServer must serve many clients at the same time,
+ * each with its own sum.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ConcurrentServerTests {
+    final static String localhost = "localhost";
+
+    ConcurrentServer server;
+    Thread           serverThread;
+    int              port;
+
+    @Before
+    public void startServer() throws IOException {
+        ServerOptions options = new ServerOptions();
+        options.threads = 8;
+        options.maxSessions = 16;
+
+        ServerSocket serverSocket = new ServerSocket(0);
+        port = serverSocket.getLocalPort();
+        server = new ConcurrentServer(serverSocket, options);
+
+        serverThread = new Thread() {
+                public void run() {
+                    try {
+                        server.serve();
+                    }
+                    catch (IOException e) {
+                        System.err.println("IOException caught in server thread:");
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.close();
+        serverThread.join();
+        assertTrue(server.awaitTermination(10, TimeUnit.SECONDS));
+        server = null;
+        serverThread = null;
+        port = -1;
+    }
+
+    // client k sends 1, 2, ..., k and expects k(k+1)/2
+    String runClient(int k) throws IOException {
+        try (Socket socket = new Socket(localhost, port)) {
+            TestableClient client = new TestableClient(socket);
+            for (int i = 1; i <= k; i++)
+                client.send(i);
+            return client.conclude();
+        }
+    }
+
+    @Test
+    public void testSequentialClients() throws Exception {
+        assertEquals("the sum 10 is positive", runClient(4));
+        assertEquals("the sum 0 is neither positive nor negative", runClient(0));
+        assertEquals("the sum 1 is positive", runClient(1));
+    }
+
+    @Test
+    public void testManyConcurrentClients() throws Exception {
+        int clients = 100;
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        List<Future<String>> results = new ArrayList<>();
+        for (int k = 0; k < clients; k++) {
+            final int n = k;
+            results.add(pool.submit(() -> runClient(n)));
+        }
+
+        for (int k = 0; k < clients; k++) {
+            int sum = k * (k + 1) / 2;
+            assertTrue(results.get(k).get(10, TimeUnit.SECONDS).startsWith("the sum " + sum + " "));
+        }
+        pool.shutdown();
+
+        // the server counts a session after the client's reply arrived
+        server.close();
+        assertTrue(server.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(clients, server.completedSessions());
+        assertEquals(0, server.activeSessions());
+        assertEquals(0, server.failedSessions());
+    }
+
+    @Test
+    public void testSessionsAreConcurrent() throws Exception {
+        // two clients hold their sessions open at the same time;
+        // with a single-threaded server the second one would hang
+        try (Socket first = new Socket(localhost, port);
+             Socket second = new Socket(localhost, port)) {
+            TestableClient a = new TestableClient(first);
+            TestableClient b = new TestableClient(second);
+            a.send(5);
+            b.send(-7);
+            assertEquals("the sum -7 is negative", b.conclude());
+            assertEquals("the sum 5 is positive", a.conclude());
+        }
+    }
+}
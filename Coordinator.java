@@ -0,0 +1,287 @@
+/**
+ * One server parses one stream on one thread, however many cores
+ * and machines there are. The Coordinator speaks the ordinary text
+ * protocol to its callers, but does not add up anything itself: it
+ * cuts every incoming stream into chunks of `chunkSize` numbers and
+ * has worker servers (ConcurrentServer, TestableServer, or another
+ * Coordinator) sum the chunks concurrently, through a ClientPool.
+ * The caller receives the total and replies as usual; each worker
+ * receives the correct reply for its own partial sum.
+ *
+ * Sums of `int` wrap around, so adding up the partial sums gives
+ * exactly what one server would have computed.
+ *
+ * A chunk whose worker fails (connection refused, reset, or closed
+ * before the sum) is sent again to the next worker, until every
+ * worker has been tried once. At most `2 * workers` chunks are in
+ * flight for a caller at any time, so that a fast caller cannot
+ * fill the coordinator's heap with chunks.
+ *
+ * Usage:
+ *
+ *     java -cp .:* ConcurrentServer 2001 &
+ *     java -cp .:* ConcurrentServer 2002 &
+ *     java -cp .:* Coordinator 1234 localhost:2001 localhost:2002 [--chunk=N]
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Coordinator implements Closeable {
+
+    /**
+     * @param workers	servers that sum the chunks
+     * @param chunkSize	numbers per chunk
+     */
+    public Coordinator(List<InetSocketAddress> workers, int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunk size must be positive");
+        this.workers = workers.size();
+        this.chunkSize = chunkSize;
+        this.pool = new ClientPool(workers, 4, 30000);
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    final int workers;
+    final int chunkSize;
+    final ClientPool pool;
+
+    // runs callers' sessions as well as chunk uploads
+    final ExecutorService executor;
+
+    // where the next chunk goes first
+    final AtomicInteger next = new AtomicInteger();
+
+    // chunks that had to be sent to another worker
+    final AtomicLong retries = new AtomicLong();
+
+    /** Number of chunks that were sent again after a worker failed. */
+    public long retries() {
+        return retries.get();
+    }
+
+    /**
+     * Accept callers and serve each on its own thread, until
+     * `serverSocket` is closed.
+     */
+    public void serve(ServerSocket serverSocket) throws IOException {
+        while (true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (IOException e) {
+                if (serverSocket.isClosed())
+                    return; // closed on purpose
+                throw e;
+            }
+            executor.execute(() -> {
+                    try (Socket s = socket) {
+                        serveClient(s);
+                    }
+                    catch (IOException | RuntimeException e) {
+                        System.err.println("session failed: " + e);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Run the summing dialogue with one caller, like
+     * `TestableServer.serveClient`, including keep-alive.
+     */
+    public void serveClient(Socket socket) throws IOException {
+        try (InputStream in = socket.getInputStream();
+             PrintWriter toClient = new PrintWriter(socket.getOutputStream(), true /* autoflush */);
+             ) {
+            ByteLineReader fromClient = new ByteLineReader(in);
+
+            boolean keepAlive = false;
+            if (fromClient.peek() == TestableServer.KEEP_ALIVE.charAt(0)) {
+                String line = TestableServer.readClientLine(fromClient);
+                if (! TestableServer.KEEP_ALIVE.equals(line))
+                    throw new NumberFormatException("For input string: \"" + line + "\"");
+                keepAlive = true;
+                toClient.println(TestableServer.KEEP_ALIVE);
+            }
+
+            do {
+                if (keepAlive && fromClient.peek() < 0)
+                    break;
+
+                int sum = scatter(fromClient);
+
+                Log.info("sending sum = %d", sum);
+                toClient.println(sum);
+                if (toClient.checkError())
+                    throw new IOException("error on send");
+
+                String line = TestableServer.readClientLine(fromClient);
+                Log.info("client says %d is %s", sum, line);
+            } while (keepAlive);
+        }
+    }
+
+    /**
+     * Read the numbers of one dialogue, have the workers sum them
+     * chunk by chunk, and gather the partial sums.
+     */
+    int scatter(ByteLineReader fromClient) throws IOException {
+        Semaphore inFlight = new Semaphore(2 * workers);
+        List<Future<Integer>> partials = new ArrayList<>();
+
+        Chunker parser = new Chunker(partials, inFlight);
+
+        try {
+            fromClient.readNumbers(parser);
+        }
+        catch (IOException | RuntimeException e) {
+            for (Future<Integer> partial : partials)
+                partial.cancel(true);
+            throw e;
+        }
+
+        if (parser.length > 0)
+            partials.add(submit(Arrays.copyOf(parser.chunk, parser.length), inFlight));
+
+        int sum = 0;
+        for (Future<Integer> partial : partials) {
+            try {
+                sum += partial.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for workers");
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause
+                                                   : new IOException(cause);
+            }
+        }
+        return sum;
+    }
+
+    // collects the numbers parsed into chunks, and submits every
+    // chunk as soon as it is full
+    class Chunker extends IntLineParser {
+        Chunker(List<Future<Integer>> partials, Semaphore inFlight) {
+            this.partials = partials;
+            this.inFlight = inFlight;
+        }
+
+        final List<Future<Integer>> partials;
+        final Semaphore inFlight;
+        int[] chunk = new int[chunkSize];
+        int length = 0;
+
+        @Override
+        protected void onNumber(int value) {
+            chunk[length++] = value;
+            if (length == chunkSize) {
+                partials.add(submit(chunk, inFlight));
+                chunk = new int[chunkSize];
+                length = 0;
+            }
+        }
+    }
+
+    Future<Integer> submit(int[] chunk, Semaphore inFlight) {
+        inFlight.acquireUninterruptibly();
+        try {
+            return executor.submit(() -> {
+                    try {
+                        return sumChunk(chunk);
+                    }
+                    finally {
+                        inFlight.release();
+                    }
+                });
+        }
+        catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Have one worker after the other try to sum `chunk`, until one
+     * succeeds or every worker has failed. A worker whose pooled
+     * connection fails gets one more try on a new connection, since
+     * it may only have closed the idle connection.
+     */
+    int sumChunk(int[] chunk) throws IOException {
+        IOException failure = null;
+        int first = next.getAndIncrement();
+        for (int attempt = 0; attempt < workers; attempt++) {
+            for (int fresh = 0; fresh < 2; fresh++) {
+                if (attempt > 0 || fresh > 0)
+                    retries.incrementAndGet();
+                TestableClient client;
+                try {
+                    client = fresh == 0 ? pool.borrow(first + attempt) : pool.borrowNew(first + attempt);
+                }
+                catch (IOException e) {
+                    // the worker cannot be reached at all
+                    failure = e;
+                    break;
+                }
+                try {
+                    client.sendAll(chunk);
+                    client.conclude();
+                    // read the sum before another thread borrows the client
+                    int sum = (int) client.sum();
+                    pool.release(client);
+                    return sum;
+                }
+                catch (IOException | NumberFormatException e) {
+                    // NumberFormatException: a line that is not a sum
+                    pool.invalidate(client);
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            }
+        }
+        throw new IOException("chunk of " + chunk.length + " numbers failed on all " + workers + " workers", failure);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        pool.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java Coordinator <port-number> <host:port>... [--chunk=N]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        if (port == 0)
+            throw new IllegalArgumentException("port must be nonzero");
+
+        int chunkSize = 65536;
+        List<InetSocketAddress> workers = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--chunk=")) {
+                chunkSize = ServerOptions.positive("--chunk", args[i].substring("--chunk=".length()));
+                continue;
+            }
+            int colon = args[i].lastIndexOf(':');
+            if (colon < 0)
+                throw new IllegalArgumentException("expected host:port, got " + args[i]);
+            workers.add(new InetSocketAddress(args[i].substring(0, colon),
+                                              Integer.parseInt(args[i].substring(colon + 1))));
+        }
+        if (workers.isEmpty())
+            throw new IllegalArgumentException("no workers");
+
+        try (Coordinator coordinator = new Coordinator(workers, chunkSize);
+             ServerSocket serverSocket = new ServerSocket(port)) {
+            coordinator.serve(serverSocket);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * A Coordinator must return the same sum as a single server, over
+ * any number of chunks, and survive workers that are down.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+
+// counts the sessions of ServerMetrics.global
+@ParallelRunner.Alone
+public class CoordinatorTests {
+    final static String localhost = "localhost";
+
+    Log.Mode mode;
+    List<ConcurrentServer> workers = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    Coordinator coordinator;
+    ServerSocket coordinatorSocket;
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+    }
+
+    @After
+    public void stopServers() throws Exception {
+        if (coordinator != null) {
+            coordinatorSocket.close();
+            coordinator.close();
+        }
+        for (ConcurrentServer worker : workers)
+            worker.close();
+        for (Thread thread : threads)
+            thread.join();
+        Log.configure(mode, 100, 1);
+    }
+
+    interface Serve {
+        void run() throws IOException;
+    }
+
+    void start(Serve serve) {
+        Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        serve.run();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        thread.start();
+        threads.add(thread);
+    }
+
+    InetSocketAddress startWorker() throws IOException {
+        return startWorker(new ServerOptions());
+    }
+
+    InetSocketAddress startWorker(ServerOptions options) throws IOException {
+        options.threads = 16;
+        ConcurrentServer worker = new ConcurrentServer(new ServerSocket(0), options);
+        workers.add(worker);
+        start(worker::serve);
+        return new InetSocketAddress(localhost, worker.serverSocket.getLocalPort());
+    }
+
+    // an address nobody listens on
+    InetSocketAddress deadWorker() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return new InetSocketAddress(localhost, socket.getLocalPort());
+        }
+    }
+
+    void startCoordinator(List<InetSocketAddress> addresses, int chunkSize) throws IOException {
+        coordinator = new Coordinator(addresses, chunkSize);
+        coordinatorSocket = new ServerSocket(0);
+        start(() -> coordinator.serve(coordinatorSocket));
+    }
+
+    Socket connect() throws IOException {
+        Socket socket = new Socket(localhost, coordinatorSocket.getLocalPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    static int[] numbers(int n) {
+        Random random = new Random(n);
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++)
+            values[i] = random.nextInt();
+        return values;
+    }
+
+    static String expected(int[] values) {
+        int sum = 0;
+        for (int value : values)
+            sum += value;
+        String reply = sum > 0 ? "positive" : sum < 0 ? "negative" : "neither positive nor negative";
+        return String.format("the sum %d is %s", sum, reply);
+    }
+
+    @Test
+    public void testChunkedSums() throws Exception {
+        startCoordinator(Arrays.asList(startWorker(), startWorker(), startWorker()), 100);
+        long before = ServerMetrics.global.getCompletedSessions();
+
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket);
+            assertTrue(client.keepAlive());
+            for (int n : new int[] { 1, 99, 100, 101, 10000 }) {
+                int[] values = numbers(n);
+                client.sendAll(values);
+                assertEquals(expected(values), client.conclude());
+                client.nextSession();
+            }
+            assertEquals("the sum 0 is neither positive nor negative", client.conclude());
+        }
+
+        // every chunk was a concluded dialogue with some worker; the
+        // workers may still be reading the last replies
+        long chunks = 1 + 1 + 1 + 2 + 100;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (ServerMetrics.global.getCompletedSessions() < before + chunks
+               && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(before + chunks, ServerMetrics.global.getCompletedSessions());
+        assertEquals(0, coordinator.retries());
+    }
+
+    @Test
+    public void testConcurrentCallers() throws Exception {
+        startCoordinator(Arrays.asList(startWorker(), startWorker()), 64);
+
+        List<Thread> callers = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int c = 0; c < 8; c++) {
+            final int[] values = numbers(1000 + c);
+            Thread caller = new Thread(() -> {
+                    try (Socket socket = connect()) {
+                        TestableClient client = new TestableClient(socket);
+                        client.sendAll(values);
+                        assertEquals(expected(values), client.conclude());
+                    }
+                    catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+            caller.start();
+            callers.add(caller);
+        }
+        for (Thread caller : callers)
+            caller.join();
+        assertEquals(Collections.emptyList(), failures);
+    }
+
+    @Test
+    public void testRetryOnDeadWorker() throws Exception {
+        startCoordinator(Arrays.asList(deadWorker(), startWorker()), 10);
+
+        int[] values = numbers(1000);
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket);
+            client.sendAll(values);
+            assertEquals(expected(values), client.conclude());
+        }
+        assertTrue(coordinator.retries() > 0);
+    }
+
+    @Test
+    public void testRetryOnClosedConnection() throws Exception {
+        // the only worker closes the pooled connection between chunks
+        ServerOptions options = new ServerOptions();
+        options.idleTimeoutMillis = 100;
+        startCoordinator(Arrays.asList(startWorker(options)), 10);
+
+        for (int round = 0; round < 2; round++) {
+            int[] values = numbers(10);
+            try (Socket socket = connect()) {
+                TestableClient client = new TestableClient(socket);
+                client.sendAll(values);
+                assertEquals(expected(values), client.conclude());
+            }
+            Thread.sleep(500);
+        }
+        assertEquals(1, coordinator.retries());
+    }
+
+    @Test
+    public void testAllWorkersDead() throws Exception {
+        startCoordinator(Arrays.asList(deadWorker(), deadWorker()), 10);
+
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket);
+            client.sendAll(numbers(100));
+            client.conclude();
+            fail("got a sum without workers");
+        }
+        catch (IOException | NumberFormatException e) {
+            // the coordinator hung up instead of sending a sum
+        }
+    }
+}
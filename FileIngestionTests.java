@@ -0,0 +1,115 @@
+/**
+ * Files of numbers must be summed with the same rules as numbers
+ * sent over a socket, whether the server maps a file itself or a
+ * client uploads it.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+public class FileIngestionTests {
+    public static final String localhost = "localhost";
+
+    Path file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = Files.createTempFile("numbers", ".txt");
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        Files.delete(file);
+    }
+
+    void write(String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSumFile() throws Exception {
+        write("1\n2\n3\n4\n");
+        assertEquals(10, TestableServer.sumFile(file));
+
+        write("1\r\n-2\r\n3");
+        assertEquals(2, TestableServer.sumFile(file));
+
+        write("");
+        assertEquals(0, TestableServer.sumFile(file));
+
+        // an empty line ends the numbers, like in the dialogue
+        write("5\n\nwhatever comes after\n");
+        assertEquals(5, TestableServer.sumFile(file));
+
+        write("2147483647\n1\n");
+        assertEquals(Integer.MIN_VALUE, TestableServer.sumFile(file));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testMalformedFile() throws Exception {
+        write("1\n2x\n");
+        TestableServer.sumFile(file);
+    }
+
+    @Test
+    public void testLargeFile() throws Exception {
+        StringBuilder content = new StringBuilder();
+        int sum = 0;
+        for (int i = 0; i < 200000; i++) {
+            int value = (i * 7919) % 100003 - 50000;
+            content.append(value).append('\n');
+            sum += value;
+        }
+        write(content.toString());
+        assertEquals(sum, TestableServer.sumFile(file));
+    }
+
+    // upload `file` to TestableServer through `socket`
+    String upload(Socket socket, ServerSocket serverSocket) throws Exception {
+        Thread serverThread = new Thread() {
+                public void run() {
+                    try {
+                        TestableServer.runServer(serverSocket);
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+
+        try (Socket s = socket) {
+            TestableClient client = new TestableClient(s);
+            client.send(100);
+            client.sendFile(file);
+            String result = client.conclude();
+            serverThread.join();
+            return result;
+        }
+    }
+
+    @Test
+    public void testSendFileThroughChannel() throws Exception {
+        write("1\n2\n3\n-4");
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(localhost, serverSocket.getLocalPort()));
+            assertEquals("the sum 102 is positive", upload(channel.socket(), serverSocket));
+        }
+    }
+
+    @Test
+    public void testSendFileThroughPlainSocket() throws Exception {
+        write("-1000\n");
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Socket socket = new Socket(localhost, serverSocket.getLocalPort());
+            assertEquals("the sum -900 is negative", upload(socket, serverSocket));
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * `BufferedReader.readLine()` followed by `Integer.parseInt(line)`
+ * creates a String (and a char[] behind it) for every number the
+ * client sends. On long streams, most of the server's garbage is
+ * made of these short-lived strings.
+ *
+ * IntLineParser reads decimal digits directly from a byte array
+ * and adds each number to a primitive accumulator, without
+ * allocating anything per line. It is a push parser: the caller
+ * hands over whatever bytes have arrived, and the parser remembers
+ * a partially received line until the next call. That makes it
+ * usable both by blocking code (see ByteLineReader) and by the
+ * non-blocking SelectorServer.
+ *
+ * Lines are accepted exactly when `Integer.parseInt` would accept
+ * them: an optional sign followed by at least one ASCII digit,
+ * with a value inside the range of `int`. Everything else throws
+ * NumberFormatException. Lines end at "\n", "\r\n" or "\r", like
+ * for `readLine()`. The numbers end at the first empty line.
+ *
+ * Lines starting with '?' or a letter are control lines. They are
+ * handed to `onControl` as a String, which refuses them unless a
+ * subclass knows what to do with them.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class IntLineParser {
+    /**
+     * Sum of all numbers parsed so far. Like the `int sum` in
+     * NaiveServer, it silently wraps around on overflow.
+     */
+    public int sum() {
+        return sum;
+    }
+
+    /** How many numbers have been parsed so far. */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Whether the last line consumed ended with '\r', so that a
+     * '\n' following it belongs to the same line terminator.
+     */
+    public boolean skipLF() {
+        return skipLF;
+    }
+
+    /**
+     * Refuse streams of more than `maxCount` numbers: the number
+     * after the last one allowed throws NumberFormatException.
+     */
+    public void setMaxCount(long maxCount) {
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Called for every number, after it has been added to the sum.
+     * Does nothing by default; override to observe the numbers.
+     */
+    protected void onNumber(int value) {
+    }
+
+    /**
+     * Called for every control line, without its line terminator.
+     * Throws NumberFormatException by default.
+     */
+    protected void onControl(String line) {
+        throw malformed("unexpected character '" + line.charAt(0) + "'");
+    }
+
+    int sum = 0;
+    long count = 0;
+    long maxCount = Long.MAX_VALUE;
+
+    // the current line so far: `value` is accumulated negatively,
+    // like in Integer.parseInt, so that Integer.MIN_VALUE fits
+    int value = 0;
+    int digits = 0;
+    boolean signed = false;
+    boolean negative = false;
+    boolean skipLF = false;
+
+    // the control line so far, if `inControl`
+    static final int MAX_CONTROL_LINE = 128;
+    byte[] control;
+    int controlLength = 0;
+    boolean inControl = false;
+
+    /**
+     * Forget the sum and any partial line, to parse a new stream.
+     */
+    public void reset() {
+        sum = 0;
+        count = 0;
+        clearLine();
+        skipLF = false;
+        inControl = false;
+    }
+
+    /**
+     * Parse the lines in buf[from, to).
+     *
+     * @return the index just after the empty line that ends the
+     *         numbers, or -1 if all bytes were consumed without
+     *         encountering it
+     * @throws NumberFormatException on a line that is not an int
+     */
+    public int parse(byte[] buf, int from, int to) {
+        int i = from;
+
+        // continue a line terminator split between two calls
+        if (skipLF && i < to) {
+            skipLF = false;
+            if (buf[i] == '\n')
+                i++;
+        }
+
+        // continue a control line split between two calls
+        if (inControl && (i = collectControl(buf, i, to)) < 0)
+            return -1;
+
+        // local copies of the fields, so that the loop works on registers
+        int value = this.value;
+        int digits = this.digits;
+        boolean signed = this.signed;
+        boolean negative = this.negative;
+
+        while (i < to) {
+            byte b = buf[i++];
+
+            if (b >= '0' && b <= '9') {
+                // the bounds of Integer.parseInt, computed negatively
+                int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+                int digit = b - '0';
+                if (value < limit / 10 || value * 10 < limit + digit)
+                    throw malformed("number out of range");
+                value = value * 10 - digit;
+                digits++;
+            }
+            else if (b == '\n' || b == '\r') {
+                if (b == '\r') {
+                    if (i == to)
+                        skipLF = true;
+                    else if (buf[i] == '\n')
+                        i++;
+                }
+
+                if (digits == 0) {
+                    if (signed)
+                        throw malformed("sign without digits");
+                    // empty line: end of numbers
+                    clearLine();
+                    return i;
+                }
+
+                if (count == maxCount)
+                    throw malformed("more than " + maxCount + " numbers");
+                int number = negative ? value : -value;
+                sum += number;
+                count++;
+                onNumber(number);
+
+                value = 0;
+                digits = 0;
+                signed = false;
+                negative = false;
+            }
+            else if ((b == '-' || b == '+') && digits == 0 && ! signed) {
+                signed = true;
+                negative = b == '-';
+            }
+            else if (digits == 0 && ! signed && isControl(b)) {
+                if (control == null)
+                    control = new byte[MAX_CONTROL_LINE];
+                control[0] = b;
+                controlLength = 1;
+                inControl = true;
+                if ((i = collectControl(buf, i, to)) < 0) {
+                    clearLine(); // the fields may hold an earlier line
+                    return -1;
+                }
+            }
+            else {
+                throw malformed("unexpected character '" + (char) (b & 0xff) + "'");
+            }
+        }
+
+        this.value = value;
+        this.digits = digits;
+        this.signed = signed;
+        this.negative = negative;
+        return -1;
+    }
+
+    /**
+     * Parse the lines between the position and the limit of `buf`,
+     * which may be a direct or memory-mapped buffer. On return, the
+     * position is just after the empty line ending the numbers, or at
+     * the limit if there was none.
+     *
+     * @return whether the empty line ending the numbers was found
+     */
+    public boolean parse(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            int offset = buf.arrayOffset();
+            int end = parse(buf.array(), offset + buf.position(), offset + buf.limit());
+            buf.position(end < 0 ? buf.limit() : end - offset);
+            return end >= 0;
+        }
+
+        // copy in bulk to the heap, which is cheaper than reading
+        // the buffer one byte at a time
+        if (scratch == null)
+            scratch = new byte[1 << 16];
+        while (buf.hasRemaining()) {
+            int n = Math.min(scratch.length, buf.remaining());
+            buf.get(scratch, 0, n);
+            int end = parse(scratch, 0, n);
+            if (end >= 0) {
+                buf.position(buf.position() - (n - end));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // heap copy of the bytes of a direct buffer
+    byte[] scratch;
+
+    static boolean isControl(byte b) {
+        return b == '?' || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    // Collect the rest of a control line from buf[i, to), and pass
+    // it on once complete. Returns the index after its line
+    // terminator, or -1 if the line goes on beyond `to`.
+    int collectControl(byte[] buf, int i, int to) {
+        while (i < to) {
+            byte b = buf[i++];
+            if (b == '\n' || b == '\r') {
+                if (b == '\r') {
+                    if (i == to)
+                        skipLF = true;
+                    else if (buf[i] == '\n')
+                        i++;
+                }
+                inControl = false;
+                onControl(new String(control, 0, controlLength, StandardCharsets.UTF_8));
+                return i;
+            }
+            if (controlLength == MAX_CONTROL_LINE) {
+                inControl = false;
+                throw malformed("control line too long");
+            }
+            control[controlLength++] = b;
+        }
+        return -1;
+    }
+
+    void clearLine() {
+        value = 0;
+        digits = 0;
+        signed = false;
+        negative = false;
+    }
+
+    NumberFormatException malformed(String reason) {
+        String message = String.format("line %d: %s", count + 1, reason);
+        clearLine();
+        return new NumberFormatException(message);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * IntLineParser must accept and reject exactly the lines that
+ * `Integer.parseInt` accepts and rejects, no matter how the bytes
+ * are split between calls.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class IntLineParserTests {
+
+    // parse `input` in chunks of `chunk` bytes; return the sum, or
+    // throw if the input ends before the empty line
+    int parse(String input, int chunk) {
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        IntLineParser parser = new IntLineParser();
+        for (int from = 0; from < bytes.length; from += chunk) {
+            int to = Math.min(from + chunk, bytes.length);
+            if (parser.parse(bytes, from, to) >= 0)
+                return parser.sum();
+        }
+        throw new IllegalStateException("no empty line");
+    }
+
+    void assertSum(int expected, String input) {
+        for (int chunk = 1; chunk <= input.length(); chunk++)
+            assertEquals("chunk size " + chunk, expected, parse(input, chunk));
+    }
+
+    void assertMalformed(String line) {
+        try {
+            Integer.parseInt(line);
+            fail("Integer.parseInt accepts " + line);
+        }
+        catch (NumberFormatException e) {
+            // expected
+        }
+
+        for (int chunk = 1; chunk <= line.length() + 2; chunk++) {
+            try {
+                parse(line + "\n\n", chunk);
+                fail("IntLineParser accepts " + line);
+            }
+            catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testSums() {
+        assertSum(10, "1\n2\n3\n4\n\n");
+        assertSum(0, "\n");
+        assertSum(-4, "1\n-2\n3\n-4\n5\n-6\n7\n-8\n\n");
+        assertSum(7, "+7\n\n");
+        assertSum(42, "00042\n\n");
+    }
+
+    @Test
+    public void testLineTerminators() {
+        assertSum(6, "1\r\n2\r3\n\r\n");
+        assertSum(6, "1\r2\r3\r\r");
+    }
+
+    @Test
+    public void testLimits() {
+        assertSum(Integer.MAX_VALUE, "2147483647\n\n");
+        assertSum(Integer.MIN_VALUE, "-2147483648\n\n");
+
+        // the sum wraps around like `int sum` in NaiveServer
+        assertSum(Integer.MIN_VALUE, "2147483647\n1\n\n");
+    }
+
+    @Test
+    public void testMalformed() {
+        assertMalformed("2147483648");
+        assertMalformed("-2147483649");
+        assertMalformed("99999999999");
+        assertMalformed("-");
+        assertMalformed("+");
+        assertMalformed("--1");
+        assertMalformed("1-");
+        assertMalformed(" 1");
+        assertMalformed("1 ");
+        assertMalformed("0x10");
+        assertMalformed("positive");
+    }
+
+    @Test
+    public void testStopsAtEmptyLine() {
+        byte[] bytes = "1\n2\n\npositive\n".getBytes(StandardCharsets.UTF_8);
+        IntLineParser parser = new IntLineParser();
+        assertEquals(5, parser.parse(bytes, 0, bytes.length));
+        assertEquals(3, parser.sum());
+        assertEquals(2, parser.count());
+    }
+
+    @Test
+    public void testByteLineReader() throws IOException {
+        byte[] bytes = "1\r\n2\r\n\r\nneither\r\n".getBytes(StandardCharsets.UTF_8);
+
+        // a tiny buffer forces lines to span several reads
+        ByteLineReader reader = new ByteLineReader(new ByteArrayInputStream(bytes), 3);
+        IntLineParser parser = new IntLineParser();
+        reader.readNumbers(parser);
+        assertEquals(3, parser.sum());
+        assertEquals("neither", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testEndOfStreamBeforeEmptyLine() throws IOException {
+        byte[] bytes = "1\n2\n".getBytes(StandardCharsets.UTF_8);
+        new ByteLineReader(new ByteArrayInputStream(bytes)).readNumbers(new IntLineParser());
+    }
+
+    @Test
+    public void testUnread() throws IOException {
+        byte[] bytes = "abcdefgh\nrest\n".getBytes(StandardCharsets.UTF_8);
+        ByteLineReader reader = new ByteLineReader(new ByteArrayInputStream(bytes), 4);
+        byte[] taken = new byte[8];
+        int n = 0;
+        while (n < taken.length)
+            n += reader.read(taken, n, taken.length - n);
+
+        // given back last bytes first, as ParallelParser does
+        for (int from = 6; from >= 0; from -= 2)
+            reader.unread(taken, from, 2);
+        // one buffer in front of the stream, however many calls
+        assertTrue(reader.in instanceof ByteLineReader.Pushback);
+        assertEquals("abcdefgh", reader.readLine());
+        assertEquals("rest", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void testControlLines() {
+        String input = "1\n?\r\n2\rprogress 10\n-3\n\n";
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            List<String> seen = new ArrayList<>();
+            IntLineParser parser = new IntLineParser() {
+                    @Override
+                    protected void onControl(String line) {
+                        seen.add(line + "@" + sum());
+                    }
+                };
+            int end = -1;
+            for (int from = 0; from < bytes.length && end < 0; from += chunk)
+                end = parser.parse(bytes, from, Math.min(from + chunk, bytes.length));
+            assertEquals("chunk size " + chunk, bytes.length, end);
+            assertEquals(0, parser.sum());
+            assertEquals(3, parser.count());
+            assertEquals(Arrays.asList("?@1", "progress 10@3"), seen);
+        }
+
+        // refused unless a subclass takes them
+        assertMalformed("?");
+        assertMalformed("sum");
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * A kept-alive connection must carry any number of dialogues,
+ * each with a fresh sum, in text and binary mode alike.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+
+public class KeepAliveTests {
+    final static String localhost = "localhost";
+
+    ServerSocket serverSocket;
+    Thread       serverThread;
+    Socket       clientSocket;
+
+    @Before
+    public void setUpConnection() throws IOException {
+        serverSocket = new ServerSocket(0);
+        serverThread = new Thread() {
+                public void run() {
+                    try {
+                        TestableServer.runServer(serverSocket);
+                    }
+                    catch (IOException e) {
+                        System.err.println("IOException caught in server thread:");
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+        clientSocket = new Socket(localhost, serverSocket.getLocalPort());
+    }
+
+    @After
+    public void disposeResources() throws IOException, InterruptedException {
+        // the server ends its loop when the client closes the connection
+        clientSocket.close();
+        serverThread.join();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testTextSessions() throws Exception {
+        TestableClient client = new TestableClient(clientSocket);
+        assertTrue(client.keepAlive());
+
+        client.sendAll(new int[] { 1, 2, 3, 4 });
+        assertEquals("the sum 10 is positive", client.conclude());
+
+        client.nextSession();
+        client.send(-5);
+        assertEquals("the sum -5 is negative", client.conclude());
+
+        client.nextSession();
+        assertEquals("the sum 0 is neither positive nor negative", client.conclude());
+    }
+
+    @Test
+    public void testBinarySessions() throws Exception {
+        TestableClient client = new TestableClient(clientSocket, true);
+        assertTrue(client.keepAlive());
+        for (int k = 1; k <= 5; k++) {
+            client.sendAll(new int[] { k, k, Integer.MAX_VALUE });
+            assertEquals("the sum " + (2L * k + Integer.MAX_VALUE) + " is positive", client.conclude());
+            client.nextSession();
+        }
+    }
+
+    @Test
+    public void testServerEndsWithoutKeepAlive() throws Exception {
+        TestableClient client = new TestableClient(clientSocket);
+        client.send(7);
+        assertEquals("the sum 7 is positive", client.conclude());
+
+        // the server closes the connection after one dialogue
+        serverThread.join();
+        assertEquals(-1, clientSocket.getInputStream().read());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNextSessionNeedsKeepAlive() throws Exception {
+        TestableClient client = new TestableClient(clientSocket);
+        client.conclude();
+        client.nextSession();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNextSessionNeedsConclude() throws Exception {
+        TestableClient client = new TestableClient(clientSocket);
+        assertTrue(client.keepAlive());
+        client.send(1);
+        try {
+            client.nextSession();
+        }
+        finally {
+            client.conclude();
+        }
+    }
+}
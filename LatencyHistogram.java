@@ -0,0 +1,125 @@
+/**
+ * A histogram of non-negative values such as latencies in
+ * microseconds, in the manner of HdrHistogram: buckets grow
+ * exponentially, and every power of two is split into 16 linear
+ * sub-buckets, so that every recorded value is known to within
+ * about 6%, from 1 to Long.MAX_VALUE, in fewer than 1000 counters.
+ *
+ * Recording is lock-free (one atomic increment, plus a compare-and-set
+ * when a new minimum or maximum is seen), so that many threads can
+ * share one histogram on their hot path.
+ */
+
+import java.util.concurrent.atomic.*;
+
+public class LatencyHistogram {
+    // values below 2^SUB_BITS get a bucket each
+    static final int SUB_BITS = 5;
+    static final int HALF = 1 << (SUB_BITS - 1);
+    static final int BUCKETS = HALF * (64 - SUB_BITS + 2);
+
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    final LongAdder total = new LongAdder();
+    final LongAdder sum = new LongAdder();
+    final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    static int index(long value) {
+        if (value < 2 * HALF)
+            return (int) value;
+        // keep the SUB_BITS highest bits of the value
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return HALF * shift + (int) (value >>> shift);
+    }
+
+    // the largest value that falls into bucket `index`
+    static long highestValue(int index) {
+        if (index < 2 * HALF)
+            return index;
+        int shift = index / HALF - 1;
+        long mantissa = index - HALF * shift;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * @param value	a non-negative value
+     */
+    public void record(long value) {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value " + value);
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+
+        long m;
+        while (value < (m = min.get()) && ! min.compareAndSet(m, value))
+            ;
+        while (value > (m = max.get()) && ! max.compareAndSet(m, value))
+            ;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long min() {
+        return count() == 0 ? 0 : min.get();
+    }
+
+    public long max() {
+        return count() == 0 ? 0 : max.get();
+    }
+
+    public double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile	between 0 and 100
+     * @return a value such that at least `percentile` percent of the
+     *         recorded values are at most as large, give or take the
+     *         resolution of the histogram
+     */
+    public long percentile(double percentile) {
+        long n = count();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValue(i), max());
+        }
+        return max();
+    }
+
+    /**
+     * Add the counts of `other` to this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        if (other.count() > 0) {
+            min.accumulateAndGet(other.min.get(), Math::min);
+            max.accumulateAndGet(other.max.get(), Math::max);
+        }
+    }
+
+    /**
+     * One line, e.g. "n=1000 min=12 p50=40 p99=230 p99.9=1023 max=1850 mean=52.3"
+     */
+    public String summary() {
+        return String.format("n=%d min=%d p50=%d p99=%d p99.9=%d max=%d mean=%.1f",
+                             count(), min(), percentile(50), percentile(99), percentile(99.9),
+                             max(), mean());
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * TestableClient.main drives one session typed in by a human.
+ * To find out how much load a server can take, LoadGenerator runs
+ * many sessions from many connections at once:
+ *
+ * - every connection runs on its own thread, keeps its connection
+ *   alive if the server agrees, and sends `numbers` random integers
+ *   per session through `send` (or `sendAll` with --batch);
+ * - in closed-loop mode (the default) every connection starts its
+ *   next session as soon as the previous one is concluded;
+ * - with --rate=R, sessions are started on a fixed schedule of R per
+ *   second over all connections, and latency is measured from the
+ *   scheduled start, so that a stalled server is not hidden by the
+ *   sessions it prevented from starting;
+ * - every sum is checked against the locally computed one.
+ *
+ * Usage:
+ *
+ *     java -cp .:* LoadGenerator <hostname> <port-number> [options]
+ *     java -cp .:* LoadGenerator unix:<path> [options]
+ *
+ *     --connections=N   concurrent connections (default 10)
+ *     --numbers=M       integers per session (default 100)
+ *     --duration=S      seconds to run (default 10)
+ *     --rate=R          sessions per second, instead of closed loop
+ *     --batch           use sendAll instead of send
+ *     --binary          use BinaryProtocol
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+    // an InetSocketAddress, or a UnixDomainSocketAddress (see Transport)
+    public SocketAddress address;
+    public int connections = 10;
+    public int numbers = 100;
+    public long durationMillis = 10000;
+    public double rate = 0; // sessions per second; 0 for closed loop
+    public boolean batch = false;
+    public boolean binary = false;
+
+    /** What happened during a run. Latencies are in microseconds. */
+    public static class Result {
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public final AtomicLong sessions = new AtomicLong();
+        public final AtomicLong errors = new AtomicLong();
+        public final AtomicLong wrongSums = new AtomicLong();
+        public long elapsedNanos;
+
+        public double sessionsPerSecond() {
+            return sessions.get() * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sessions=%d errors=%d wrong-sums=%d sessions/s=%.1f%nlatency (us): %s",
+                                 sessions.get(), errors.get(), wrongSums.get(),
+                                 sessionsPerSecond(), latency.summary());
+        }
+    }
+
+    /**
+     * Run the load for `durationMillis` and wait for all connections
+     * to finish their last session.
+     */
+    public Result run() throws InterruptedException {
+        Result result = new Result();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        Thread[] threads = new Thread[connections];
+        for (int c = 0; c < connections; c++) {
+            final int connection = c;
+            threads[c] = new Thread(() -> drive(connection, start, end, result), "load-" + c);
+            threads[c].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    // the loop of one connection
+    void drive(int connection, long start, long end, Result result) {
+        Random random = new Random(connection);
+        int[] values = new int[numbers];
+
+        // with a fixed rate, connection c starts its sessions at
+        // start + (c + k * connections) / rate, for k = 0, 1, 2, ...
+        long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+        long scheduled = rate > 0 ? start + (long) (1e9 * connection / rate) : 0;
+
+        TestableClient client = null;
+        try {
+            while (true) {
+                // prepare the numbers before the clock starts
+                long expected = 0;
+                for (int i = 0; i < numbers; i++) {
+                    values[i] = random.nextInt();
+                    expected += values[i];
+                }
+                if (! binary)
+                    expected = (int) expected; // like the server's `int sum`
+
+                long begin;
+                if (rate > 0) {
+                    if (scheduled >= end)
+                        break;
+                    long wait;
+                    while ((wait = scheduled - System.nanoTime()) > 0)
+                        LockSupport.parkNanos(wait);
+                    begin = scheduled;
+                    scheduled += interval;
+                }
+                else {
+                    begin = System.nanoTime();
+                    if (begin >= end)
+                        break;
+                }
+
+                try {
+                    if (client == null)
+                        client = connect();
+                    else
+                        client.nextSession();
+
+                    if (batch)
+                        client.sendAll(values);
+                    else
+                        for (int value : values)
+                            client.send(value);
+                    client.conclude();
+
+                    result.latency.record((System.nanoTime() - begin) / 1000);
+                    result.sessions.incrementAndGet();
+                    if (client.sum() != expected)
+                        result.wrongSums.incrementAndGet();
+
+                    if (! client.keepAlive) {
+                        client.socket.close();
+                        client = null;
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    result.errors.incrementAndGet();
+                    if (client != null) {
+                        closeQuietly(client.socket);
+                        client = null;
+                    }
+                }
+            }
+        }
+        finally {
+            if (client != null)
+                closeQuietly(client.socket);
+        }
+    }
+
+    // servers that do not know keep-alive drop the connection when
+    // asked; remember that, and connect once per session from then on
+    volatile boolean keepAlive = true;
+
+    TestableClient connect() throws IOException {
+        Socket socket = Transport.connect(address);
+        socket.setTcpNoDelay(true);
+        TestableClient client = new TestableClient(socket, binary);
+        if (keepAlive && ! client.keepAlive()) {
+            keepAlive = false;
+            socket.close();
+            return connect();
+        }
+        return client;
+    }
+
+    static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || (args.length < 2 && ! Transport.isUnix(args[0]))) {
+            System.err.println("Usage: java LoadGenerator <hostname> <port-number> [options]\n" +
+                               "       java LoadGenerator unix:<path> [options]");
+            System.exit(1);
+        }
+
+        LoadGenerator load = new LoadGenerator();
+        int first;
+        if (Transport.isUnix(args[0])) {
+            load.address = Transport.parse(args[0]);
+            first = 1;
+        }
+        else {
+            load.address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+            first = 2;
+        }
+        for (int i = first; i < args.length; i++) {
+            String arg = args[i];
+            String value = arg.indexOf('=') >= 0 ? arg.substring(arg.indexOf('=') + 1) : null;
+            if (arg.startsWith("--connections="))
+                load.connections = ServerOptions.positive("--connections", value);
+            else if (arg.startsWith("--numbers="))
+                load.numbers = ServerOptions.positive("--numbers", value);
+            else if (arg.startsWith("--duration="))
+                load.durationMillis = (long) (Double.parseDouble(value) * 1000);
+            else if (arg.startsWith("--rate="))
+                load.rate = Double.parseDouble(value);
+            else if (arg.equals("--batch"))
+                load.batch = true;
+            else if (arg.equals("--binary"))
+                load.binary = true;
+            else
+                throw new IllegalArgumentException("unknown option: " + arg);
+        }
+
+        // the clients' own chatter would measure the console, not the server
+        Log.configure(Log.Mode.OFF, 1, 1);
+
+        Result result = load.run();
+        System.out.println(result);
+        if (result.errors.get() > 0 || result.wrongSums.get() > 0)
+            System.exit(2);
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * LatencyHistogram must report percentiles within its resolution,
+ * and LoadGenerator must complete and check sessions against a
+ * real server.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.net.*;
+import java.io.*;
+
+// runs for a fixed time, which parallel tests would eat up
+@ParallelRunner.Alone
+public class LoadGeneratorTests {
+
+    @Test
+    public void testBucketsCoverAllValues() {
+        long previous = -1;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long highest = LatencyHistogram.highestValue(i);
+            if (highest == Long.MAX_VALUE)
+                break;
+            assertTrue(previous + 1 <= highest);
+            assertEquals(i, LatencyHistogram.index(previous + 1));
+            assertEquals(i, LatencyHistogram.index(highest));
+            previous = highest;
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int v = 1; v <= 10000; v++)
+            histogram.record(v);
+
+        assertEquals(10000, histogram.count());
+        assertEquals(1, histogram.min());
+        assertEquals(10000, histogram.max());
+        assertEquals(5000.5, histogram.mean(), 1e-9);
+
+        assertWithin(5000, histogram.percentile(50));
+        assertWithin(9900, histogram.percentile(99));
+        assertWithin(9990, histogram.percentile(99.9));
+        assertEquals(10000, histogram.percentile(100));
+    }
+
+    // the histogram's answer is at least exact and at most 1/16 larger
+    void assertWithin(long exact, long reported) {
+        assertTrue(reported + " < " + exact, reported >= exact);
+        assertTrue(reported + " >> " + exact, reported <= exact + exact / 16);
+    }
+
+    @Test
+    public void testAdd() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(3);
+        b.record(1000);
+        a.add(b);
+        assertEquals(2, a.count());
+        assertEquals(3, a.min());
+        assertEquals(1000, a.max());
+    }
+
+    @Test
+    public void testClosedLoop() throws Exception {
+        Log.Mode mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+
+        ServerOptions options = new ServerOptions();
+        options.threads = 8;
+        ConcurrentServer server = new ConcurrentServer(new ServerSocket(0), options);
+        Thread serverThread = new Thread() {
+                public void run() {
+                    try {
+                        server.serve();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+        try {
+            for (boolean binary : new boolean[] { false, true }) {
+                LoadGenerator load = new LoadGenerator();
+                load.address = new InetSocketAddress("localhost", server.serverSocket.getLocalPort());
+                load.connections = 4;
+                load.numbers = 50;
+                load.durationMillis = 300;
+                load.batch = true;
+                load.binary = binary;
+
+                LoadGenerator.Result result = load.run();
+                assertTrue(result.sessions.get() > 0);
+                assertEquals(0, result.errors.get());
+                assertEquals(0, result.wrongSums.get());
+                assertEquals(result.sessions.get(), result.latency.count());
+            }
+        }
+        finally {
+            server.close();
+            serverThread.join();
+            Log.configure(mode, 100, 1);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * The servers used to call `System.out.println` for every number
+ * received. `PrintStream` is synchronized, so under load all
+ * sessions queue up behind the console, one line at a time.
+ *
+ * Log is the one place through which servers and clients report
+ * what they are doing. The mode is chosen once at startup:
+ *
+ * - SYNC     print every message right away (the old behavior)
+ * - SAMPLED  print about one in `sampleRate` messages
+ * - ASYNC    put messages into a bounded ring buffer, from which a
+ *            background thread prints them; when the buffer is full,
+ *            messages are dropped and counted rather than waited for
+ * - OFF      print nothing
+ *
+ * The mode is read from system properties, e.g.
+ *
+ *     java -Dlog=async -Dlog.capacity=65536 -cp .:* ConcurrentServer 1234
+ *     java -Dlog=sampled -Dlog.sample=1000 -cp .:* ConcurrentServer 1234
+ *
+ * Messages are a format string with one number and optionally one
+ * more argument, so that callers need not build a String on the
+ * request path; formatting happens only for messages that are
+ * actually printed, and in ASYNC mode on the background thread.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+public final class Log {
+    public enum Mode { OFF, SYNC, SAMPLED, ASYNC }
+
+    private Log() {
+    }
+
+    static volatile Mode mode = Mode.SYNC;
+    static volatile int sampleRate = 100;
+    static volatile Ring ring = null;
+
+    static {
+        String property = System.getProperty("log");
+        if (property != null)
+            configure(Mode.valueOf(property.toUpperCase()),
+                      Integer.getInteger("log.sample", 100),
+                      Integer.getInteger("log.capacity", 1 << 14));
+    }
+
+    /**
+     * Choose how messages are printed. Meant to be called once,
+     * before any session starts.
+     *
+     * @param sampleRate	in SAMPLED mode, print 1 in `sampleRate` messages
+     * @param capacity		in ASYNC mode, messages buffered at most
+     */
+    public static synchronized void configure(Mode newMode, int sampleRate, int capacity) {
+        if (sampleRate <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("sampleRate and capacity must be positive");
+        if (newMode == Mode.ASYNC && ring == null) {
+            ring = new Ring(capacity);
+            ring.start();
+            // print what is still buffered when the program ends
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+        }
+        Log.sampleRate = sampleRate;
+        Log.mode = newMode;
+    }
+
+    /** Whether any message could be printed at all. */
+    public static boolean enabled() {
+        return mode != Mode.OFF;
+    }
+
+    public static void info(String message) {
+        info(message, 0, null);
+    }
+
+    public static void info(String format, long value) {
+        info(format, value, null);
+    }
+
+    /**
+     * @param format	a format string for `String.format`, which finds
+     *                  `arg` as its only argument
+     */
+    public static void info(String format, Object arg) {
+        log(format, 0, arg, false);
+    }
+
+    /**
+     * @param format	a format string for `String.format`, which finds
+     *                  `value` as its 1st argument and `arg` as its 2nd
+     */
+    public static void info(String format, long value, Object arg) {
+        log(format, value, arg, true);
+    }
+
+    // `value` is left out of the message unless `withValue`
+    static void log(String format, long value, Object arg, boolean withValue) {
+        switch (mode) {
+        case OFF:
+            return;
+        case SAMPLED:
+            if (ThreadLocalRandom.current().nextInt(sampleRate) != 0)
+                return;
+            System.out.println(format(format, value, arg, withValue));
+            return;
+        case SYNC:
+            System.out.println(format(format, value, arg, withValue));
+            return;
+        case ASYNC:
+            ring.offer(format, value, arg, withValue);
+            return;
+        }
+    }
+
+    static String format(String format, long value, Object arg, boolean withValue) {
+        return withValue ? String.format(format, value, arg) : String.format(format, arg);
+    }
+
+    /** Number of messages dropped because the ring buffer was full. */
+    public static long dropped() {
+        Ring r = ring;
+        return r == null ? 0 : r.dropped.get();
+    }
+
+    /**
+     * Wait until all buffered messages have been printed.
+     */
+    public static void flush() {
+        Ring r = ring;
+        if (r != null)
+            r.flush();
+    }
+
+    /**
+     * A bounded multi-producer, single-consumer queue on preallocated
+     * arrays. Every slot carries a sequence number telling whether it
+     * is free for the producer of round `n` or filled for the consumer,
+     * so producers only ever contend on one compare-and-set.
+     */
+    static final class Ring extends Thread {
+        Ring(int capacity) {
+            super("log-writer");
+            setDaemon(true);
+
+            int size = Integer.highestOneBit(capacity);
+            if (size < capacity)
+                size <<= 1;
+            this.mask = size - 1;
+            this.sequence = new AtomicLongArray(size);
+            this.formats = new String[size];
+            this.values = new long[size];
+            this.args = new Object[size];
+            this.withValues = new boolean[size];
+            for (int i = 0; i < size; i++)
+                sequence.set(i, i);
+        }
+
+        final int mask;
+        final AtomicLongArray sequence;
+        final String[] formats;
+        final long[] values;
+        final Object[] args;
+        final boolean[] withValues;
+
+        final AtomicLong tail = new AtomicLong();   // next slot to fill
+        volatile long head = 0;                     // next slot to print
+        final AtomicLong dropped = new AtomicLong();
+
+        void offer(String format, long value, Object arg, boolean withValue) {
+            long t;
+            int slot;
+            while (true) {
+                t = tail.get();
+                slot = (int) t & mask;
+                long s = sequence.get(slot);
+                if (s < t) {
+                    // the consumer has not freed this slot yet: full
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (s == t && tail.compareAndSet(t, t + 1))
+                    break;
+            }
+            formats[slot] = format;
+            values[slot] = value;
+            args[slot] = arg;
+            withValues[slot] = withValue;
+            sequence.set(slot, t + 1); // publish
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (! drainOne())
+                    LockSupport.parkNanos(1000000);
+            }
+        }
+
+        boolean drainOne() {
+            long h = head;
+            int slot = (int) h & mask;
+            if (sequence.get(slot) != h + 1)
+                return false;
+
+            String format = formats[slot];
+            long value = values[slot];
+            Object arg = args[slot];
+            boolean withValue = withValues[slot];
+            formats[slot] = null;
+            args[slot] = null;
+            sequence.set(slot, h + mask + 1); // free for the next round
+            head = h + 1;
+
+            System.out.println(format(format, value, arg, withValue));
+            return true;
+        }
+
+        void flush() {
+            while (head < tail.get())
+                LockSupport.parkNanos(1000000);
+        }
+    }
+}
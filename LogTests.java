@@ -0,0 +1,75 @@
+/**
+ * The ring buffer behind Log's ASYNC mode must keep messages in
+ * order and drop, not block, when it is full.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+// changes Log.mode
+@ParallelRunner.Alone
+public class LogTests {
+
+    @Test
+    public void testRingKeepsOrder() {
+        // not started, so that this test drains it by hand
+        Log.Ring ring = new Log.Ring(4);
+        ring.offer("message %d", 1, null, true);
+        ring.offer("message %s", 0, "2", false);
+        assertEquals(1, ring.values[0]);
+        assertEquals("2", ring.args[1]);
+        assertFalse(ring.withValues[1]);
+        assertTrue(ring.drainOne());
+        assertTrue(ring.drainOne());
+        assertFalse(ring.drainOne());
+        assertEquals(2, ring.head);
+    }
+
+    @Test
+    public void testRingDropsWhenFull() {
+        Log.Ring ring = new Log.Ring(3); // rounded up to 4 slots
+        for (int i = 0; i < 6; i++)
+            ring.offer("message %d", i, null, true);
+        assertEquals(2, ring.dropped.get());
+
+        // draining frees the slots for the next round
+        for (int i = 0; i < 4; i++)
+            assertTrue(ring.drainOne());
+        ring.offer("message %d", 6, null, true);
+        assertEquals(6, ring.values[0]);
+        assertTrue(ring.drainOne());
+        assertEquals(2, ring.dropped.get());
+    }
+
+    @Test
+    public void testRingWithConcurrentProducers() throws InterruptedException {
+        final Log.Ring ring = new Log.Ring(1 << 12);
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            producers[p] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < 1000; i++)
+                            ring.offer("message %d", i, null, true);
+                    }
+                };
+            producers[p].start();
+        }
+        for (Thread producer : producers)
+            producer.join();
+
+        assertEquals(0, ring.dropped.get());
+        assertEquals(4000, ring.tail.get());
+        long total = 0;
+        for (long value : ring.values)
+            total += value;
+        assertEquals(4 * (999 * 1000 / 2), total);
+    }
+
+    @Test
+    public void testFormat() {
+        assertEquals("7 is x", Log.format("%d is %s", 7, "x", true));
+        // Log.info(format, arg) leaves the number out
+        assertEquals("sending: 42", Log.format("sending: %s", 0, "42", false));
+    }
+}
@@ -48,17 +48,17 @@ public class NaiveServer {
             int sum = 0;
 
             while ((line = fromClient.readLine()).length() > 0) {
-                System.out.println("received: " + line);
+                Log.info("received: %s", line);
                 sum += Integer.parseInt(line);
             }
 
-            System.out.println("sending sum = " + sum);
+            Log.info("sending sum = %d", sum);
             toClient.println(sum);
             if (toClient.checkError())
                 throw new IOException("error on send");
 
             line = fromClient.readLine();
-            System.out.println(String.format("client says %d is %s", sum, line));
+            Log.info("client says %d is %s", sum, line);
         }
     }
 
@@ -0,0 +1,262 @@
+/**
+ * `ByteLineReader.readNumbers` parses a dialogue on the thread that
+ * serves it, so that a single huge upload keeps one core busy while
+ * the others sit idle. ParallelParser splits the work: the serving
+ * thread only reads large blocks off the connection and cuts each
+ * after its last complete line, and the workers of a ForkJoinPool
+ * parse and add up several blocks at a time. The partial results
+ * are merged into the SessionParser block by block, in the order
+ * the blocks were received, before the sum is sent.
+ *
+ * Workers handle numbers and the empty line ending them. A block
+ * with anything else in it, be it a control line or a malformed
+ * line, is parsed again by the SessionParser itself once the blocks
+ * before it are merged, so that replies and errors come exactly
+ * where they come without ParallelParser. So is every block while
+ * the client wants progress sums, and a block that would exceed the
+ * most numbers allowed. Numbers parsed by the workers are not logged
+ * one by one.
+ *
+ * The serving thread must not wait for more bytes while the client
+ * waits for an answer. When the bytes received so far end with an
+ * empty line or a control line, it merges all blocks before reading
+ * on. Bytes read beyond the empty line go back to the ByteLineReader,
+ * for what follows the numbers.
+ *
+ * Used by TestableServer with `ConcurrentServer --parallel-parse`.
+ * A connection holds a few blocks of BLOCK_SIZE bytes for as long as
+ * it lasts, which is fine for a few large uploads and wasteful for
+ * many small ones.
+ *
+ * Not thread-safe: one ParallelParser per connection.
+ */
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+public class ParallelParser {
+    // most bytes read off the connection before parsing starts
+    static final int BLOCK_SIZE = 1 << 20;
+
+    public ParallelParser(ForkJoinPool pool) {
+        this(pool, BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize	bytes per block, more than the longest valid
+     *                  line (for tests; BLOCK_SIZE otherwise)
+     */
+    public ParallelParser(ForkJoinPool pool, int blockSize) {
+        if (blockSize <= IntLineParser.MAX_CONTROL_LINE + 2)
+            throw new IllegalArgumentException("blocks must hold a whole control line");
+        this.pool = pool;
+        this.blockSize = blockSize;
+        // enough to keep all workers busy while the next block is read
+        this.maxInFlight = 2 * pool.getParallelism();
+    }
+
+    final ForkJoinPool pool;
+    final int blockSize;
+    final int maxInFlight;
+
+    // blocks handed to the workers and not merged yet, in order
+    final ArrayDeque<Block> inFlight = new ArrayDeque<>();
+
+    // blocks merged, to be reused
+    final ArrayDeque<byte[]> free = new ArrayDeque<>();
+
+    // the block being read: buf[0, length) holds the bytes received
+    // after the last block handed out, which start at a new line
+    byte[] buf;
+    int length;
+
+    // a block of whole lines, parsed by a worker
+    static class Block extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        Block(byte[] buf, int length) {
+            this.buf = buf;
+            this.length = length;
+        }
+
+        final byte[] buf;
+        final int length;
+
+        // the numbers, if the block holds nothing else up to the
+        // empty line, if any
+        final WindowedStats.Batch numbers = new WindowedStats.Batch();
+        boolean plain;
+
+        // the index after the empty line, or -1, and whether the
+        // block ends with '\r'
+        int end;
+        boolean skipLF;
+
+        @Override
+        protected void compute() {
+            IntLineParser parser = new IntLineParser() {
+                    @Override
+                    protected void onNumber(int value) {
+                        numbers.add(value);
+                    }
+
+                    @Override
+                    protected void onControl(String line) {
+                        throw new NumberFormatException("control line");
+                    }
+                };
+            try {
+                end = parser.parse(buf, 0, length);
+                skipLF = parser.skipLF();
+                plain = true;
+            }
+            catch (NumberFormatException e) {
+                plain = false;
+            }
+        }
+    }
+
+    /**
+     * Feed the lines of `fromClient` to `parser` until the empty line
+     * ending the numbers, like `fromClient.readNumbers(parser)`.
+     *
+     * @throws EOFException if the stream ends before the empty line
+     * @throws NumberFormatException on a line that is not an int
+     */
+    public void readNumbers(ByteLineReader fromClient,
+                            TestableServer.SessionParser parser) throws IOException {
+        parser.skipLF = fromClient.skipLF;
+        fromClient.skipLF = false;
+        buf = take();
+        length = 0;
+        try {
+            while (true) {
+                int n = fromClient.read(buf, length, buf.length - length);
+                boolean eof = n < 0;
+                if (! eof)
+                    length += n;
+
+                // fill the block while more bytes are there already
+                boolean waiting = eof || endsWithRequest(buf, length);
+                if (! waiting && length < buf.length && fromClient.available() > 0)
+                    continue;
+
+                int cut = afterLastLine(buf, length);
+                if (cut == 0 && length == buf.length) {
+                    // a line longer than a block cannot be valid; the
+                    // SessionParser will say what is wrong with it
+                    if (merge(fromClient, parser, true))
+                        return;
+                    parser.parse(buf, 0, length);
+                    throw new NumberFormatException("line " + (parser.count() + 1) + ": line too long");
+                }
+                if (cut > 0) {
+                    Block block = new Block(buf, cut);
+                    pool.execute(block);
+                    inFlight.addLast(block);
+                    byte[] next = take();
+                    System.arraycopy(buf, cut, next, 0, length - cut);
+                    buf = next;
+                    length -= cut;
+                }
+
+                if (merge(fromClient, parser, waiting))
+                    return;
+                if (eof)
+                    throw new EOFException("connection closed before the empty line");
+            }
+        }
+        catch (IOException e) {
+            // the numbers received count (see SessionParser.checkpoint)
+            merge(fromClient, parser, true);
+            throw e;
+        }
+        finally {
+            // blocks not merged belong to a dialogue that ended or
+            // failed; workers may still be reading them
+            for (Block block : inFlight)
+                block.cancel(false);
+            inFlight.clear();
+            free.addLast(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Merge blocks in order: all of them if `all`, else those parsed
+     * already and as many more as needed to keep fewer than
+     * `maxInFlight`.
+     *
+     * @return whether the empty line ending the numbers was found
+     */
+    boolean merge(ByteLineReader fromClient, TestableServer.SessionParser parser,
+                  boolean all) {
+        while (! inFlight.isEmpty()) {
+            Block block = inFlight.peekFirst();
+            if (! all && ! block.isDone() && inFlight.size() < maxInFlight)
+                return false;
+            inFlight.removeFirst();
+            block.join();
+
+            int end;
+            if (block.plain && parser.progressEvery == 0
+                && parser.count() + block.numbers.count <= parser.maxCount
+                // a '\n' completing the "\r" ending the block before
+                // is no empty line
+                && ! (parser.skipLF && block.buf[0] == '\n')) {
+                parser.addNumbers(block.numbers);
+                parser.skipLF = block.skipLF;
+                end = block.end;
+            }
+            else {
+                end = parser.parse(block.buf, 0, block.length);
+            }
+
+            if (end >= 0) {
+                // give back what follows, last bytes first
+                fromClient.unread(buf, 0, length);
+                length = 0;
+                inFlight.descendingIterator()
+                    .forEachRemaining(later -> fromClient.unread(later.buf, 0, later.length));
+                fromClient.unread(block.buf, end, block.length - end);
+                fromClient.skipLF = parser.skipLF;
+                parser.skipLF = false;
+                free.addLast(block.buf);
+                return true;
+            }
+            free.addLast(block.buf);
+        }
+        return false;
+    }
+
+    byte[] take() {
+        byte[] block = free.pollFirst();
+        return block != null ? block : new byte[blockSize];
+    }
+
+    static boolean isTerminator(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    // the index after the last line terminator in buf[0, length),
+    // or 0 if there is none
+    static int afterLastLine(byte[] buf, int length) {
+        int i = length;
+        while (i > 0 && ! isTerminator(buf[i - 1]))
+            i--;
+        return i;
+    }
+
+    // whether buf[0, length) ends with a line the client may wait
+    // for an answer to: the empty line, or a control line
+    static boolean endsWithRequest(byte[] buf, int length) {
+        int end = length - 1;
+        if (end < 0 || ! isTerminator(buf[end]))
+            return false;
+        if (buf[end] == '\n' && end > 0 && buf[end - 1] == '\r')
+            end--;
+        int start = afterLastLine(buf, end);
+        return start == end || IntLineParser.isControl(buf[start]);
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * With ParallelParser, a dialogue must come out exactly as without
+ * it: the same sum and count, the same errors on the same lines, the
+ * same replies to control lines, and the bytes after the numbers
+ * left for what follows.
+ *
+ * The unit tests use tiny blocks, so that lines and line terminators
+ * are cut at every possible place.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ParallelParserTests {
+    Log.Mode mode;
+    ServerOptions options = new ServerOptions();
+    ConcurrentServer server;
+    Thread serverThread;
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        if (server != null) {
+            server.close();
+            serverThread.join();
+        }
+        Log.configure(mode, 100, 1);
+    }
+
+    void startServer() throws IOException {
+        options.parallelParse = true;
+        server = new ConcurrentServer(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()), options);
+        serverThread = new Thread() {
+                public void run() {
+                    try {
+                        server.serve();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+    }
+
+    Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.serverSocket.getLocalPort());
+        socket.setSoTimeout(10000); // fail rather than hang
+        return socket;
+    }
+
+    // `count` random numbers, with all kinds of line terminators
+    static String numbers(Random random, int count) {
+        String[] terminators = { "\n", "\r\n", "\r" };
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(random.nextInt());
+            // "\r" followed by "\n" would be one terminator
+            String terminator = terminators[random.nextInt(3)];
+            if (terminator.equals("\r") && i == count - 1)
+                terminator = "\n";
+            text.append(terminator);
+        }
+        return text.toString();
+    }
+
+    static String sumText(long sum) {
+        return String.format("the sum %d is %s", sum, BinaryProtocol.replyText(sum));
+    }
+
+    static TestableServer.SessionParser newParser(StringWriter replies) {
+        return new TestableServer.SessionParser(new PrintWriter(replies, true));
+    }
+
+    // parse `text` sequentially and in parallel; both must agree
+    static void assertSame(String text, int blockSize) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        StringWriter expectedReplies = new StringWriter();
+        TestableServer.SessionParser expected = newParser(expectedReplies);
+        ByteLineReader expectedReader = new ByteLineReader(new ByteArrayInputStream(bytes));
+        String expectedError = null;
+        try {
+            expectedReader.readNumbers(expected);
+        }
+        catch (IOException | NumberFormatException e) {
+            expectedError = e.toString();
+        }
+
+        StringWriter actualReplies = new StringWriter();
+        TestableServer.SessionParser actual = newParser(actualReplies);
+        ByteLineReader actualReader = new ByteLineReader(new ByteArrayInputStream(bytes));
+        String actualError = null;
+        try {
+            new ParallelParser(ForkJoinPool.commonPool(), blockSize).readNumbers(actualReader, actual);
+        }
+        catch (IOException | NumberFormatException e) {
+            actualError = e.toString();
+        }
+
+        assertEquals(expectedError, actualError);
+        assertEquals(expected.count(), actual.count());
+        assertEquals(expected.sum(), actual.sum());
+        assertEquals(expectedReplies.toString(), actualReplies.toString());
+        if (expectedError == null)
+            assertEquals(expectedReader.readLine(), actualReader.readLine());
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        Random random = new Random(1);
+        for (int blockSize : new int[] { 131, 200, 1 << 12 }) {
+            assertSame(numbers(random, 10000) + "\nthe rest\n", blockSize);
+            assertSame(numbers(random, 10000) + "\r\n" + "the rest\n", blockSize);
+        }
+    }
+
+    @Test
+    public void testControlLines() throws Exception {
+        Random random = new Random(2);
+        String name = "parallel-" + UUID.randomUUID();
+        String counted = numbers(random, 1000);
+        assertSame(numbers(random, 1000) + "?\n" + numbers(random, 1000) + "?\r\n"
+                   + "counter " + name + "\n" + counted + "counter other-" + name + "\n"
+                   + "get " + UUID.randomUUID() + "\n"
+                   + "progress 100\n" + numbers(random, 1000) + "\n", 200);
+
+        // both runs added to the counter
+        long sum = 0;
+        for (String line : counted.split("\r\n|\r|\n"))
+            sum += Integer.parseInt(line);
+        assertEquals(2 * sum, Accumulators.global.get(name));
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        Random random = new Random(3);
+        assertSame(numbers(random, 1000) + "12x\n" + numbers(random, 1000) + "\n", 200);
+        assertSame(numbers(random, 1000) + "99999999999\n\n", 200);
+        assertSame(numbers(random, 1000) + String.join("", Collections.nCopies(300, "1")) + "\n\n", 200);
+        // the stream ends before the empty line
+        assertSame(numbers(random, 1000), 200);
+        assertSame(numbers(random, 1000) + "12", 200);
+    }
+
+    @Test
+    public void testMaxCount() throws Exception {
+        byte[] bytes = numbers(new Random(4), 1000).getBytes(StandardCharsets.UTF_8);
+        TestableServer.SessionParser parser = newParser(new StringWriter());
+        parser.setMaxCount(500);
+        try {
+            new ParallelParser(ForkJoinPool.commonPool(), 200)
+                .readNumbers(new ByteLineReader(new ByteArrayInputStream(bytes)), parser);
+            fail("more numbers than allowed");
+        }
+        catch (NumberFormatException e) {
+            assertEquals("line 501: more than 500 numbers", e.getMessage());
+        }
+        assertEquals(500, parser.count());
+    }
+
+    @Test
+    public void testRequests() {
+        byte[] bytes = "1\n?\r\n\n12\r".getBytes(StandardCharsets.UTF_8);
+        assertFalse(ParallelParser.endsWithRequest(bytes, 2));
+        assertTrue(ParallelParser.endsWithRequest(bytes, 4));
+        assertTrue(ParallelParser.endsWithRequest(bytes, 5));
+        assertTrue(ParallelParser.endsWithRequest(bytes, 6));
+        assertFalse(ParallelParser.endsWithRequest(bytes, 8));
+        assertFalse(ParallelParser.endsWithRequest(bytes, 9));
+        assertEquals(6, ParallelParser.afterLastLine(bytes, 8));
+        assertEquals(0, ParallelParser.afterLastLine(bytes, 1));
+    }
+
+    @Test(timeout = 60000)
+    public void testLargeUpload() throws Exception {
+        startServer();
+        int[] values = new Random(5).ints(2000000).toArray();
+        int sum = 0;
+        for (int value : values)
+            sum += value;
+
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket);
+            client.sendAll(values);
+            assertEquals(sumText(sum), client.conclude());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testDialogues() throws Exception {
+        startServer();
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket);
+            assertTrue(client.keepAlive());
+            for (int dialogue = 1; dialogue <= 3; dialogue++) {
+                int[] values = new int[100000];
+                Arrays.fill(values, dialogue);
+                client.sendAll(values);
+                assertEquals(100000L * dialogue, client.peekSum());
+                client.sendAll(values);
+                assertEquals(sumText(200000 * dialogue), client.conclude());
+                client.nextSession();
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testCompressed() throws Exception {
+        startServer();
+        int[] values = new Random(6).ints(500000, -1000, 1000).toArray();
+        int sum = 0;
+        for (int value : values)
+            sum += value;
+
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket);
+            assertTrue(client.compress(6, false));
+            client.sendAll(values);
+            assertEquals(sumText(sum), client.conclude());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * `make run A B C` runs the test classes one after the other, and
+ * most of the time goes into waiting for sockets. ParallelRunner
+ * runs them at the same time, one thread per class:
+ *
+ *     make test                               # all *Tests classes
+ *     java -cp .:* ParallelRunner A B C
+ *
+ * Classes marked @ParallelRunner.Alone look at state shared by the
+ * whole JVM, such as Log.mode or ServerMetrics.global, which other
+ * classes would change under their feet, or expect work done within
+ * a fixed time. They run first, one at a time. Logging is turned off
+ * for the parallel part, where the console would only serialize the
+ * tests again.
+ */
+
+import org.junit.experimental.ParallelComputer;
+import org.junit.runner.*;
+import org.junit.runner.notification.Failure;
+
+import java.lang.annotation.*;
+import java.util.*;
+
+public class ParallelRunner {
+    /** A test class that must not run in parallel with others. */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.TYPE)
+    public @interface Alone {
+    }
+
+    public static void main(String[] args) throws ClassNotFoundException {
+        List<Class<?>> alone = new ArrayList<>();
+        List<Class<?>> parallel = new ArrayList<>();
+        for (String name : args) {
+            Class<?> c = Class.forName(name);
+            (c.isAnnotationPresent(Alone.class) ? alone : parallel).add(c);
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = new ArrayList<>();
+        results.add(JUnitCore.runClasses(alone.toArray(new Class<?>[0])));
+
+        Log.configure(Log.Mode.OFF, 1, 1);
+        results.add(JUnitCore.runClasses(new ParallelComputer(true, false), parallel.toArray(new Class<?>[0])));
+
+        int runs = 0;
+        List<Failure> failures = new ArrayList<>();
+        for (Result result : results) {
+            runs += result.getRunCount();
+            failures.addAll(result.getFailures());
+        }
+        for (int i = 0; i < failures.size(); i++) {
+            System.out.println((i + 1) + ") " + failures.get(i).getTestHeader());
+            System.out.println(failures.get(i).getTrace());
+        }
+        System.out.println(String.format("%s (%d tests, %d failures) in %.1f s",
+                                         failures.isEmpty() ? "OK" : "FAILURES!!!",
+                                         runs, failures.size(), (System.nanoTime() - start) / 1e9));
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+}
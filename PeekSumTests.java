@@ -0,0 +1,93 @@
+/**
+ * A client must be able to learn the sum so far in the middle of a
+ * dialogue, on request and as periodic progress sums, without
+ * disturbing the dialogue itself.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.IntStream;
+
+public class PeekSumTests {
+    @ClassRule
+    public static final ServerFixture server = ServerFixture.shared();
+
+    Log.Mode mode;
+    Socket clientSocket;
+
+    @Before
+    public void setUpConnection() throws IOException {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+        clientSocket = server.connect();
+    }
+
+    @After
+    public void disposeResources() throws IOException {
+        clientSocket.close();
+        Log.configure(mode, 100, 1);
+    }
+
+    @Test
+    public void testPeekText() throws Exception {
+        TestableClient client = new TestableClient(clientSocket);
+        assertEquals(0, client.peekSum());
+        client.sendAll(new int[] { 1, 2, 3 });
+        assertEquals(6, client.peekSum());
+        client.send(-10);
+        assertEquals(-4, client.peekSum());
+        assertEquals(-4, client.peekSum());
+        assertEquals("the sum -4 is negative", client.conclude());
+    }
+
+    @Test
+    public void testPeekBinary() throws Exception {
+        TestableClient client = new TestableClient(clientSocket, true);
+        client.sendAll(new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE });
+        assertEquals(2L * Integer.MAX_VALUE, client.peekSum());
+        client.send(1);
+        assertEquals(2L * Integer.MAX_VALUE + 1, client.peekSum());
+        assertEquals("the sum " + (2L * Integer.MAX_VALUE + 1) + " is positive", client.conclude());
+    }
+
+    @Test
+    public void testPeekAcrossSessions() throws Exception {
+        TestableClient client = new TestableClient(clientSocket);
+        assertTrue(client.keepAlive());
+        client.sendAll(new int[] { 5, 5 });
+        assertEquals(10, client.peekSum());
+        client.conclude();
+
+        client.nextSession();
+        assertEquals(0, client.peekSum());
+        client.send(7);
+        assertEquals(7, client.peekSum());
+        assertEquals("the sum 7 is positive", client.conclude());
+    }
+
+    @Test
+    public void testProgress() throws Exception {
+        TestableClient client = new TestableClient(clientSocket);
+        client.requestProgress(1000);
+        // enough progress lines to fill the socket buffers, had the
+        // client not taken them off as it went
+        client.sendAll(IntStream.range(0, 1000000).map(i -> 1));
+        assertEquals(1000000, client.peekSum());
+        assertEquals("the sum 1000000 is positive", client.conclude());
+        assertEquals(1000000, client.progressSum());
+    }
+
+    @Test
+    public void testUnknownControlLine() throws Exception {
+        OutputStream out = clientSocket.getOutputStream();
+        out.write("1\nsum please\n\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        // the server hangs up without a sum
+        assertEquals(-1, clientSocket.getInputStream().read());
+    }
+}
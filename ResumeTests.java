@@ -0,0 +1,124 @@
+/**
+ * A dialogue named with "resume <id>" must survive a broken
+ * connection: the server keeps its checkpoint, and a new connection
+ * continues from the numbers already received.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class ResumeTests {
+    @ClassRule
+    public static final ServerFixture server = ServerFixture.shared();
+
+    Log.Mode mode;
+    InetSocketAddress address = server.address();
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+    }
+
+    @After
+    public void restore() {
+        Log.configure(mode, 100, 1);
+    }
+
+    // send the text, then drop the connection in the middle of the dialogue
+    void breakOff(String id, String text) throws Exception {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            assertEquals(0, client.resume(id));
+            OutputStream out = socket.getOutputStream();
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        // the server notices the end of stream and saves a checkpoint
+        long deadline = System.currentTimeMillis() + 10000;
+        while (! Checkpoints.global.contains(id) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(Checkpoints.global.contains(id));
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        String id = "test-resume-" + UUID.randomUUID();
+        breakOff(id, "1\n2\n3\n40");
+
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            // the unfinished line "40" does not count
+            assertEquals(3, client.resume(id));
+            assertEquals(6, client.peekSum());
+            client.send(4);
+            assertEquals("the sum 10 is positive", client.conclude());
+        }
+        // a finished dialogue leaves no checkpoint
+        assertFalse(Checkpoints.global.contains(id));
+    }
+
+    @Test
+    public void testUnknownIdStartsOver() throws Exception {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            assertEquals(0, client.resume("test-unknown-" + UUID.randomUUID()));
+            client.sendAll(new int[] { 2, 3 });
+            assertEquals("the sum 5 is positive", client.conclude());
+        }
+    }
+
+    @Test
+    public void testSumResumable() throws Exception {
+        String id = "test-sum-resumable-" + UUID.randomUUID();
+        int[] values = new int[100000];
+        Arrays.fill(values, -1);
+
+        StringBuilder half = new StringBuilder();
+        for (int i = 0; i < 40000; i++)
+            half.append("-1\n");
+        breakOff(id, half.toString());
+
+        assertEquals("the sum -100000 is negative",
+                     TestableClient.sumResumable(address, id, values, 3));
+    }
+
+    @Test
+    public void testResumeAfterNumbersIsRefused() throws Exception {
+        try (Socket socket = server.connect()) {
+            OutputStream out = socket.getOutputStream();
+            out.write("1\nresume late\n\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void testLeastRecentlySavedIsEvicted() {
+        Checkpoints checkpoints = new Checkpoints(2, 60000);
+        checkpoints.save("a", 1, 1);
+        checkpoints.save("b", 2, 2);
+        checkpoints.save("c", 3, 3);
+        assertEquals(2, checkpoints.size());
+        assertNull(checkpoints.take("a"));
+        assertEquals(2, checkpoints.take("b").sum);
+        assertNull(checkpoints.take("b"));
+        assertEquals(3, checkpoints.take("c").count);
+    }
+
+    @Test
+    public void testCheckpointsExpire() throws Exception {
+        Checkpoints checkpoints = new Checkpoints(10, 50);
+        checkpoints.save("a", 1, 1);
+        assertTrue(checkpoints.contains("a"));
+        Thread.sleep(100);
+        assertNull(checkpoints.take("a"));
+        assertEquals(0, checkpoints.size());
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * The server must get every sum right at scale: long streams of a
+ * million numbers, and hundreds of clients at the same time, in both
+ * protocols. Runs against the shared ServerFixture.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// changes Log.mode, and its hundreds of clients crowd the shared server
+@ParallelRunner.Alone
+@RunWith(Parameterized.class)
+public class ScaleTests {
+    @ClassRule
+    public static final ServerFixture server = ServerFixture.shared();
+
+    @Parameters(name = "{0} clients x {1} numbers, binary={2}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+                { 1, 1000000, false },
+                { 1, 1000000, true },
+                { 200, 1000, false },
+                { 200, 1000, true },
+                { 500, 10, false },
+            });
+    }
+
+    public ScaleTests(int clients, int numbers, boolean binary) {
+        this.clients = clients;
+        this.numbers = numbers;
+        this.binary = binary;
+    }
+
+    final int clients;
+    final int numbers;
+    final boolean binary;
+
+    Log.Mode mode;
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+    }
+
+    @After
+    public void restore() {
+        Log.configure(mode, 100, 1);
+    }
+
+    // one client's dialogue; returns null if the sum was right
+    String dialogue(int seed) throws IOException {
+        Random random = new Random(seed);
+        int[] values = new int[numbers];
+        long expected = 0;
+        for (int i = 0; i < numbers; i++) {
+            values[i] = random.nextInt();
+            expected += values[i];
+        }
+        if (! binary)
+            expected = (int) expected;
+
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket, binary);
+            client.sendAll(values);
+            client.conclude();
+            return client.sum() == expected ? null : "client " + seed + ": " + client.sum() + " != " + expected;
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void testSums() throws Exception {
+        // all clients connect at once
+        CountDownLatch ready = new CountDownLatch(clients);
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                final int seed = c;
+                results.add(pool.submit(() -> {
+                            ready.countDown();
+                            ready.await();
+                            return dialogue(seed);
+                        }));
+            }
+            for (Future<String> result : results)
+                assertNull(result.get());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * ConcurrentServer spends one thread, and thus one thread stack,
+ * on every connected client, even if the client is idle most of
+ * the time. SelectorServer speaks the same dialogue as
+ * TestableServer, but multiplexes all connections over a few
+ * event-loop threads with non-blocking channels:
+ *
+ * - the thread calling `serve()` accepts connections and hands
+ *   each one to an event loop, round robin;
+ * - every event loop waits on its own `Selector` until some of its
+ *   connections can be read from or written to;
+ * - every connection is a small state machine with its own read
+ *   buffer, which remembers how far the dialogue has progressed
+ *   between two readiness events.
+ *
+ * Usage:
+ *
+ *     java -cp .:* SelectorServer <port-number> [event-loop-count]
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class SelectorServer implements Closeable {
+
+    /**
+     * @param serverChannel	a bound server channel in blocking mode;
+     *                      closing the SelectorServer closes it
+     * @param eventLoops	number of event-loop threads
+     */
+    public SelectorServer(ServerSocketChannel serverChannel, int eventLoops) throws IOException {
+        if (eventLoops <= 0)
+            throw new IllegalArgumentException("eventLoops must be positive");
+        this.serverChannel = serverChannel;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++)
+            loops[i] = new EventLoop(i);
+    }
+
+    final ServerSocketChannel serverChannel;
+    final EventLoop[] loops;
+
+    final AtomicInteger activeSessions = new AtomicInteger();
+    final AtomicLong completedSessions = new AtomicLong();
+    final AtomicLong failedSessions = new AtomicLong();
+
+    /** Number of connections being served right now. */
+    public int activeSessions() {
+        return activeSessions.get();
+    }
+
+    /** Number of sessions that ran to the end of the dialogue. */
+    public long completedSessions() {
+        return completedSessions.get();
+    }
+
+    /** Number of sessions that ended prematurely. */
+    public long failedSessions() {
+        return failedSessions.get();
+    }
+
+    /**
+     * Accept connections until the server channel is closed.
+     */
+    public void serve() throws IOException {
+        for (EventLoop loop : loops)
+            loop.start();
+
+        int next = 0;
+        try {
+            while (serverChannel.isOpen()) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                }
+                catch (ClosedChannelException e) {
+                    break; // close() was called
+                }
+                channel.configureBlocking(false);
+                ServerMetrics.global.connectionAccepted();
+                activeSessions.incrementAndGet();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+        finally {
+            for (EventLoop loop : loops)
+                loop.shutdown();
+        }
+    }
+
+    /**
+     * Stop accepting and close all connections.
+     */
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (EventLoop loop : loops)
+            loop.shutdown();
+    }
+
+    /**
+     * Wait until all event-loop threads have ended.
+     * Only meaningful after `close()`.
+     */
+    public void join() throws InterruptedException {
+        for (EventLoop loop : loops)
+            loop.join();
+    }
+
+    class EventLoop extends Thread {
+        EventLoop(int index) throws IOException {
+            super("selector-loop-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        final Selector selector;
+
+        // channels accepted by `serve()`, to be registered by the
+        // event-loop thread itself, because registration blocks while
+        // another thread is inside `selector.select()`
+        final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        volatile boolean running = true;
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null)
+                        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable())
+                                connection.onWritable(key);
+                            else if (key.isReadable())
+                                connection.onReadable(key);
+                        }
+                        catch (IOException | RuntimeException e) {
+                            System.err.println("session failed: " + e);
+                            connection.close(false);
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                System.err.println("event loop failed: " + e);
+            }
+            finally {
+                for (SelectionKey key : selector.keys())
+                    ((Connection) key.attachment()).close(false);
+                SocketChannel channel;
+                while ((channel = pending.poll()) != null)
+                    new Connection(channel).close(false);
+                try {
+                    selector.close();
+                }
+                catch (IOException e) {
+                    // nothing left to clean up
+                }
+            }
+        }
+    }
+
+    // states of a connection, in the order of the dialogue
+    static final int READING_NUMBERS = 0;
+    static final int WRITING_SUM     = 1;
+    static final int READING_REPLY   = 2;
+    static final int DONE            = 3;
+
+    class Connection {
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        final SocketChannel channel;
+
+        // for ServerMetrics
+        final long start = ServerMetrics.global.sessionStarted();
+
+        // bytes received but not yet consumed; kept in "write mode"
+        // between two readiness events
+        final ByteBuffer in = ByteBuffer.allocate(1024);
+
+        // numbers are parsed in place from `in`; a number split
+        // between two reads is remembered by the parser
+        final IntLineParser parser = new IntLineParser() {
+                @Override
+                protected void onNumber(int value) {
+                    Log.info("received: %d", value);
+                }
+            };
+
+        // the reply line being assembled, which may span several reads;
+        // a client that never ends it fails its session, not the server
+        static final int MAX_REPLY_LINE = IntLineParser.MAX_CONTROL_LINE;
+        byte[] line = new byte[16];
+        int lineLength = 0;
+
+        // true after '\r', so that a following '\n' is ignored
+        boolean skipLF = false;
+
+        int state = READING_NUMBERS;
+        int sum = 0;
+        ByteBuffer out;
+
+        void onReadable(SelectionKey key) throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                // client went away before the dialogue ended
+                close(false);
+                return;
+            }
+            ServerMetrics.global.bytesIn.add(n);
+            consume(key);
+        }
+
+        void onWritable(SelectionKey key) throws IOException {
+            if (flush(key))
+                consume(key); // the reply may already be waiting in `in`
+        }
+
+        // process the bytes in `in` for as long as we are in a reading
+        // state; bytes beyond that stay in the buffer
+        void consume(SelectionKey key) throws IOException {
+            in.flip();
+            try {
+                if (state == READING_NUMBERS) {
+                    int end;
+                    try {
+                        end = parser.parse(in.array(), in.position(), in.limit());
+                    }
+                    catch (NumberFormatException e) {
+                        ServerMetrics.global.parseError();
+                        throw e;
+                    }
+                    if (end < 0) {
+                        in.position(in.limit());
+                        return;
+                    }
+                    in.position(end);
+                    skipLF = parser.skipLF();
+
+                    sum = parser.sum();
+                    Log.info("sending sum = %d", sum);
+                    out = ByteBuffer.wrap((sum + "\n").getBytes(StandardCharsets.UTF_8));
+                    state = WRITING_SUM;
+                    if (! flush(key))
+                        return;
+                }
+
+                while (in.hasRemaining() && state == READING_REPLY) {
+                    byte b = in.get();
+                    if (skipLF) {
+                        skipLF = false;
+                        if (b == '\n')
+                            continue;
+                    }
+                    if (b == '\n' || b == '\r') {
+                        String text = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+                        Log.info("client says %d is %s", sum, text);
+                        close(true);
+                    }
+                    else {
+                        if (lineLength == MAX_REPLY_LINE)
+                            throw new ProtocolException("reply line too long");
+                        if (lineLength == line.length)
+                            line = Arrays.copyOf(line, line.length * 2);
+                        line[lineLength++] = b;
+                    }
+                }
+            }
+            finally {
+                in.compact();
+            }
+        }
+
+        // write what is left of `out`; returns true when all is written
+        boolean flush(SelectionKey key) throws IOException {
+            ServerMetrics.global.bytesOut.add(channel.write(out));
+            if (out.hasRemaining()) {
+                // socket buffer full; continue when there is room
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            out = null;
+            state = READING_REPLY;
+            ServerMetrics.global.sumSent(start);
+            key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+
+        void close(boolean ok) {
+            if (state == DONE)
+                return;
+            state = DONE;
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                // the connection is gone either way
+            }
+            if (ok)
+                completedSessions.incrementAndGet();
+            else
+                failedSessions.incrementAndGet();
+            activeSessions.decrementAndGet();
+            ServerMetrics.global.sessionEnded(start, parser.count(), ok);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java SelectorServer <port-number> [event-loop-count]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        if (port == 0)
+            throw new IllegalArgumentException("port must be nonzero");
+        int eventLoops = args.length > 1
+            ? Integer.parseInt(args[1])
+            : Runtime.getRuntime().availableProcessors();
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        try (SelectorServer server = new SelectorServer(serverChannel, eventLoops)) {
+            server.serve();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * SelectorServer must run the same dialogue as TestableServer,
+ * and keep many idle connections open with few threads.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+public class SelectorServerTests {
+    final static String localhost = "localhost";
+
+    SelectorServer server;
+    Thread         serverThread;
+    int            port;
+
+    @Before
+    public void startServer() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(0));
+        port = serverChannel.socket().getLocalPort();
+        server = new SelectorServer(serverChannel, 2);
+
+        serverThread = new Thread() {
+                public void run() {
+                    try {
+                        server.serve();
+                    }
+                    catch (IOException e) {
+                        System.err.println("IOException caught in server thread:");
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.close();
+        serverThread.join();
+        server.join();
+        server = null;
+        serverThread = null;
+        port = -1;
+    }
+
+    // the raw dialogue of ModularTests.testServer
+    void testServer(String[] clientLines, String serverResponse, String clientReply)
+        throws IOException
+    {
+        try (Socket clientSocket = new Socket(localhost, port);
+             BufferedReader fromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+             PrintWriter toServer = new PrintWriter(clientSocket.getOutputStream(), true);
+             ){
+            for (String line : clientLines)
+                toServer.println(line);
+            toServer.println();
+            assertEquals(serverResponse, fromServer.readLine());
+            toServer.println(clientReply);
+            assertFalse(toServer.checkError());
+
+            // server closes the connection after the reply
+            assertNull(fromServer.readLine());
+        }
+    }
+
+    @Test
+    public void test1234() throws Exception {
+        testServer(new String[] { "1", "2", "3", "4" }, "10", "positive");
+    }
+
+    @Test
+    public void testEmptyInput() throws Exception {
+        testServer(new String[] {}, "0", "neither positive nor negative");
+    }
+
+    @Test
+    public void testNegative() throws Exception {
+        testServer(new String[] { "1", "-2", "3", "-4", "5", "-6", "7", "-8" }, "-4", "negative");
+    }
+
+    @Test
+    public void testCarriageReturns() throws Exception {
+        try (Socket clientSocket = new Socket(localhost, port);
+             BufferedReader fromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+             OutputStream toServer = clientSocket.getOutputStream();
+             ){
+            toServer.write("12\r\n-2\r3\n\r\n".getBytes("UTF-8"));
+            toServer.flush();
+            assertEquals("13", fromServer.readLine());
+            toServer.write("positive\r\n".getBytes("UTF-8"));
+            toServer.flush();
+            assertNull(fromServer.readLine());
+        }
+    }
+
+    @Test
+    public void testEndlessReply() throws Exception {
+        try (Socket clientSocket = new Socket(localhost, port);
+             BufferedReader fromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+             OutputStream toServer = clientSocket.getOutputStream();
+             ){
+            clientSocket.setSoTimeout(10000);
+            toServer.write("5\n\n".getBytes("UTF-8"));
+            toServer.flush();
+            assertEquals("5", fromServer.readLine());
+            // a reply that never ends drops this session only
+            byte[] chunk = new byte[1024];
+            Arrays.fill(chunk, (byte) 'x');
+            try {
+                for (int i = 0; i < 1024; i++)
+                    toServer.write(chunk);
+            }
+            catch (IOException e) {
+                // the server closed the connection while we wrote
+            }
+            try {
+                assertNull(fromServer.readLine());
+            }
+            catch (SocketException e) {
+                // reset, because bytes we sent were left unread
+            }
+        }
+        testServer(new String[] { "1", "2" }, "3", "positive");
+    }
+
+    @Test
+    public void testManyIdleConnections() throws Exception {
+        int clients = 500;
+        List<Socket> sockets = new ArrayList<>();
+        List<TestableClient> sessions = new ArrayList<>();
+        try {
+            // open all connections and leave each session half done
+            for (int k = 0; k < clients; k++) {
+                Socket socket = new Socket(localhost, port);
+                sockets.add(socket);
+                TestableClient client = new TestableClient(socket);
+                client.send(k);
+                sessions.add(client);
+            }
+
+            // now finish them in reverse order
+            for (int k = clients - 1; k >= 0; k--) {
+                String expected = k > 0 ? "the sum " + k + " is positive"
+                                        : "the sum 0 is neither positive nor negative";
+                assertEquals(expected, sessions.get(k).conclude());
+            }
+        }
+        finally {
+            for (Socket socket : sockets)
+                socket.close();
+        }
+    }
+}
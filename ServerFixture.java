@@ -0,0 +1,87 @@
+/**
+ * Most tests need nothing but some server that speaks the protocol.
+ * Starting a server per test, and joining its thread at the end,
+ * makes every test wait for the one before it. ServerFixture is one
+ * ConcurrentServer for all test classes of a JVM, started on first
+ * use and kept until the JVM exits:
+ *
+ *     @ClassRule
+ *     public static final ServerFixture server = ServerFixture.shared();
+ *
+ *     @Test
+ *     public void test() throws Exception {
+ *         try (Socket socket = server.connect()) {
+ *             TestableClient client = new TestableClient(socket);
+ *             ...
+ *         }
+ *     }
+ *
+ * The server has threads and backlog enough for hundreds of clients
+ * at once. Tests that need particular ServerOptions, or that count
+ * sessions of their own server, should still start their own.
+ */
+
+import org.junit.rules.ExternalResource;
+
+import java.io.*;
+import java.net.*;
+
+public class ServerFixture extends ExternalResource {
+    static ServerFixture shared;
+
+    /** The server shared by all test classes. */
+    public static synchronized ServerFixture shared() {
+        if (shared == null) {
+            try {
+                shared = new ServerFixture();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("cannot start the shared server", e);
+            }
+        }
+        return shared;
+    }
+
+    ServerFixture() throws IOException {
+        ServerOptions options = new ServerOptions();
+        options.threads = 256;
+        server = new ConcurrentServer(new ServerSocket(0, 1024, InetAddress.getLoopbackAddress()), options);
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.serverSocket.getLocalPort());
+
+        Thread serverThread = new Thread("shared-server") {
+                public void run() {
+                    try {
+                        server.serve();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    final ConcurrentServer server;
+    final InetSocketAddress address;
+
+    @Override
+    protected void before() {
+        if (server.serverSocket.isClosed())
+            throw new IllegalStateException("the shared server was closed");
+    }
+
+    public InetSocketAddress address() {
+        return address;
+    }
+
+    /**
+     * A new connection to the server. Reads time out after 10
+     * seconds, so that a broken test fails instead of hanging.
+     */
+    public Socket connect() throws IOException {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * The only signal of what a server is doing used to be its console
+ * output, which is expensive to produce and useless for dashboards.
+ * ServerMetrics counts what the servers do, cheaply enough to stay
+ * on all the time:
+ *
+ * - counters are LongAdders, which threads update without contending
+ *   on a shared cache line;
+ * - durations go into LatencyHistograms, which are lock-free;
+ * - sessions add up their lines at the end, not line by line.
+ *
+ * All servers in a JVM report to `ServerMetrics.global`. It can be
+ * inspected through JMX (see ServerMetricsMBean) and through a plain
+ * text page on a local admin port:
+ *
+ *     java -cp .:* ConcurrentServer 1234 --admin-port=9100
+ *     curl http://localhost:9100/
+ *
+ * which answers lines like
+ *
+ *     accepted_connections 1200
+ *     session_duration_us{quantile="0.99"} 873
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+public class ServerMetrics implements ServerMetricsMBean {
+    public static final ServerMetrics global = new ServerMetrics();
+
+    final LongAdder acceptedConnections = new LongAdder();
+    final LongAdder activeSessions = new LongAdder();
+    final LongAdder completedSessions = new LongAdder();
+    final LongAdder failedSessions = new LongAdder();
+    final LongAdder linesParsed = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder parseErrors = new LongAdder();
+    final LongAdder rejectedConnections = new LongAdder();
+    final LongAdder readTimeouts = new LongAdder();
+    final LongAdder idleTimeouts = new LongAdder();
+
+    // microseconds from the start of a session to its end, and to
+    // the moment its sum was sent
+    final LatencyHistogram sessionDuration = new LatencyHistogram();
+    final LatencyHistogram timeToSum = new LatencyHistogram();
+
+    // per-second rates, updated by `tick()`
+    volatile double connectionsPerSecond, sessionsPerSecond, linesPerSecond,
+                    bytesInPerSecond, bytesOutPerSecond;
+    long lastTick = System.nanoTime();
+    long lastConnections, lastSessions, lastLines, lastBytesIn, lastBytesOut;
+    ScheduledExecutorService ticker;
+
+    // hooks called by the servers
+
+    void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    /** @return the start time, to be passed to `sessionEnded` */
+    long sessionStarted() {
+        activeSessions.increment();
+        return System.nanoTime();
+    }
+
+    void sumSent(long start) {
+        timeToSum.record((System.nanoTime() - start) / 1000);
+    }
+
+    void sessionEnded(long start, long lines, boolean ok) {
+        activeSessions.decrement();
+        linesParsed.add(lines);
+        if (ok) {
+            completedSessions.increment();
+            sessionDuration.record((System.nanoTime() - start) / 1000);
+        }
+        else {
+            failedSessions.increment();
+        }
+    }
+
+    void parseError() {
+        parseErrors.increment();
+    }
+
+    /**
+     * Wrap a socket's output stream so that bytes written are counted.
+     */
+    OutputStream countOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    // the JMX view
+
+    public long getAcceptedConnections() { return acceptedConnections.sum(); }
+    public long getActiveSessions()      { return activeSessions.sum(); }
+    public long getCompletedSessions()   { return completedSessions.sum(); }
+    public long getFailedSessions()      { return failedSessions.sum(); }
+    public long getLinesParsed()         { return linesParsed.sum(); }
+    public long getBytesIn()             { return bytesIn.sum(); }
+    public long getBytesOut()            { return bytesOut.sum(); }
+    public long getParseErrors()         { return parseErrors.sum(); }
+    public long getRejectedConnections() { return rejectedConnections.sum(); }
+    public long getReadTimeouts()        { return readTimeouts.sum(); }
+    public long getIdleTimeouts()        { return idleTimeouts.sum(); }
+
+    public double getConnectionsPerSecond() { return connectionsPerSecond; }
+    public double getSessionsPerSecond()    { return sessionsPerSecond; }
+    public double getLinesPerSecond()       { return linesPerSecond; }
+    public double getBytesInPerSecond()     { return bytesInPerSecond; }
+    public double getBytesOutPerSecond()    { return bytesOutPerSecond; }
+
+    public long getSessionDurationP50()  { return sessionDuration.percentile(50); }
+    public long getSessionDurationP99()  { return sessionDuration.percentile(99); }
+    public long getSessionDurationP999() { return sessionDuration.percentile(99.9); }
+    public long getTimeToSumP50()        { return timeToSum.percentile(50); }
+    public long getTimeToSumP99()        { return timeToSum.percentile(99); }
+    public long getTimeToSumP999()       { return timeToSum.percentile(99.9); }
+
+    /**
+     * Recompute the per-second rates from the counters.
+     */
+    synchronized void tick() {
+        long now = System.nanoTime();
+        double seconds = (now - lastTick) / 1e9;
+        if (seconds <= 0)
+            return;
+
+        long connections = acceptedConnections.sum();
+        long sessions = completedSessions.sum() + failedSessions.sum();
+        long lines = linesParsed.sum();
+        long in = bytesIn.sum();
+        long out = bytesOut.sum();
+
+        connectionsPerSecond = (connections - lastConnections) / seconds;
+        sessionsPerSecond = (sessions - lastSessions) / seconds;
+        linesPerSecond = (lines - lastLines) / seconds;
+        bytesInPerSecond = (in - lastBytesIn) / seconds;
+        bytesOutPerSecond = (out - lastBytesOut) / seconds;
+
+        lastTick = now;
+        lastConnections = connections;
+        lastSessions = sessions;
+        lastLines = lines;
+        lastBytesIn = in;
+        lastBytesOut = out;
+    }
+
+    synchronized void startTicker() {
+        if (ticker != null)
+            return;
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-ticker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        ticker.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Make the metrics visible through JMX.
+     */
+    public void registerMBean() throws JMException {
+        ObjectName name = new ObjectName("swprak:type=ServerMetrics");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (! server.isRegistered(name))
+            server.registerMBean(this, name);
+        startTicker();
+    }
+
+    /**
+     * The metrics as plain text, one "name value" line each.
+     */
+    public String render() {
+        StringBuilder text = new StringBuilder();
+        line(text, "accepted_connections", getAcceptedConnections());
+        line(text, "active_sessions", getActiveSessions());
+        line(text, "completed_sessions", getCompletedSessions());
+        line(text, "failed_sessions", getFailedSessions());
+        line(text, "lines_parsed", getLinesParsed());
+        line(text, "bytes_in", getBytesIn());
+        line(text, "bytes_out", getBytesOut());
+        line(text, "parse_errors", getParseErrors());
+        line(text, "rejected_connections", getRejectedConnections());
+        line(text, "read_timeouts", getReadTimeouts());
+        line(text, "idle_timeouts", getIdleTimeouts());
+        line(text, "connections_per_second", connectionsPerSecond);
+        line(text, "sessions_per_second", sessionsPerSecond);
+        line(text, "lines_per_second", linesPerSecond);
+        line(text, "bytes_in_per_second", bytesInPerSecond);
+        line(text, "bytes_out_per_second", bytesOutPerSecond);
+        histogram(text, "session_duration_us", sessionDuration);
+        histogram(text, "time_to_sum_us", timeToSum);
+        for (int seconds : new int[] { 60, 3600 })
+            window(text, seconds, WindowedStats.global.last(seconds));
+        return text.toString();
+    }
+
+    static void line(StringBuilder text, String name, Object value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    static void window(StringBuilder text, int seconds, WindowedStats.Window window) {
+        String label = "{window=\"" + seconds + "s\"}";
+        line(text, "received_count" + label, window.count);
+        line(text, "received_sum" + label, window.sum);
+        line(text, "received_min" + label, window.min);
+        line(text, "received_max" + label, window.max);
+    }
+
+    static void histogram(StringBuilder text, String name, LatencyHistogram histogram) {
+        for (String quantile : new String[] { "0.5", "0.99", "0.999" })
+            line(text, name + "{quantile=\"" + quantile + "\"}",
+                 histogram.percentile(100 * Double.parseDouble(quantile)));
+        line(text, name + "_count", histogram.count());
+        line(text, name + "_max", histogram.max());
+    }
+
+    /**
+     * Serve `render()` to whoever connects to `port` on the loopback
+     * interface, as an HTTP response, so that both `curl` and `nc`
+     * can read it.
+     *
+     * @return the admin server socket; close it to stop serving
+     */
+    public ServerSocket startAdminEndpoint(int port) throws IOException {
+        ServerSocket adminSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        startTicker();
+        Thread thread = new Thread("metrics-admin") {
+                public void run() {
+                    while (! adminSocket.isClosed()) {
+                        try (Socket socket = adminSocket.accept()) {
+                            serveAdmin(socket);
+                        }
+                        catch (IOException e) {
+                            // closed, or a scraper that went away
+                        }
+                    }
+                }
+            };
+        thread.setDaemon(true);
+        thread.start();
+        return adminSocket;
+    }
+
+    void serveAdmin(Socket socket) throws IOException {
+        // skip an HTTP request if one comes; `nc` sends none
+        socket.setSoTimeout(200);
+        try {
+            BufferedReader request = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String line;
+            while ((line = request.readLine()) != null && line.length() > 0)
+                ;
+        }
+        catch (SocketTimeoutException e) {
+            // nothing to skip
+        }
+
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.0 200 OK\r\n" +
+                   "Content-Type: text/plain; charset=utf-8\r\n" +
+                   "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(body);
+        out.flush();
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * What ServerMetrics shows through JMX, e.g. in jconsole or
+ * VisualVM under "swprak:type=ServerMetrics".
+ * Durations are in microseconds, rates per second.
+ */
+
+public interface ServerMetricsMBean {
+    long getAcceptedConnections();
+    long getActiveSessions();
+    long getCompletedSessions();
+    long getFailedSessions();
+    long getLinesParsed();
+    long getBytesIn();
+    long getBytesOut();
+    long getParseErrors();
+    long getRejectedConnections();
+    long getReadTimeouts();
+    long getIdleTimeouts();
+
+    double getConnectionsPerSecond();
+    double getSessionsPerSecond();
+    double getLinesPerSecond();
+    double getBytesInPerSecond();
+    double getBytesOutPerSecond();
+
+    long getSessionDurationP50();
+    long getSessionDurationP99();
+    long getSessionDurationP999();
+    long getTimeToSumP50();
+    long getTimeToSumP99();
+    long getTimeToSumP999();
+}
@@ -0,0 +1,171 @@
+/**
+ * ServerMetrics must count what the servers do: connections,
+ * sessions, lines, bytes and parse errors, whichever server
+ * and protocol served them, and show them on the admin port.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.net.*;
+import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+
+// counts everything that ServerMetrics.global counts
+@ParallelRunner.Alone
+public class ServerMetricsTests {
+    Log.Mode mode;
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+    }
+
+    @After
+    public void restore() {
+        Log.configure(mode, 100, 1);
+    }
+
+    ServerMetrics metrics = ServerMetrics.global;
+
+    // the counters are global; tests look at their increase
+    long[] snapshot() {
+        return new long[] {
+            metrics.getAcceptedConnections(), metrics.getCompletedSessions(),
+            metrics.getFailedSessions(), metrics.getLinesParsed(),
+            metrics.getBytesIn(), metrics.getBytesOut(), metrics.getParseErrors(),
+            metrics.timeToSum.count()
+        };
+    }
+
+    void assertIncrease(long[] before, long... increase) {
+        long[] after = snapshot();
+        for (int i = 0; i < increase.length; i++)
+            if (increase[i] >= 0)
+                assertEquals("counter " + i, before[i] + increase[i], after[i]);
+    }
+
+    // run one TestableServer session; the client's half is `body`
+    interface Client {
+        void run(Socket socket) throws IOException;
+    }
+
+    void session(Client body) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread serverThread = new Thread() {
+                    public void run() {
+                        try {
+                            TestableServer.runServer(serverSocket);
+                        }
+                        catch (IOException | RuntimeException e) {
+                            // counted as a failed session
+                        }
+                    }
+                };
+            serverThread.start();
+            try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+                body.run(socket);
+            }
+            serverThread.join();
+        }
+    }
+
+    @Test
+    public void testTextSession() throws Exception {
+        long[] before = snapshot();
+        session(socket -> {
+                TestableClient client = new TestableClient(socket);
+                client.sendAll(new int[] { 1, 2, 3 });
+                assertEquals("the sum 6 is positive", client.conclude());
+            });
+        // "1\n2\n3\n\n" in, "6\n" out, then "positive\n" in
+        assertIncrease(before, 1, 1, 0, 3, 16, 2, 0, 1);
+    }
+
+    @Test
+    public void testBinarySession() throws Exception {
+        long[] before = snapshot();
+        session(socket -> {
+                TestableClient client = new TestableClient(socket, true);
+                client.sendAll(new int[] { 1, 2, 3, 4 });
+                client.conclude();
+                assertEquals(10, client.sum());
+            });
+        assertIncrease(before, 1, 1, 0, 4, -1, 8, 0, 1);
+    }
+
+    @Test
+    public void testParseError() throws Exception {
+        long[] before = snapshot();
+        session(socket -> {
+                OutputStream out = socket.getOutputStream();
+                out.write("1\nfour\n\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                // the server hangs up without a sum
+                assertEquals(-1, socket.getInputStream().read());
+            });
+        assertIncrease(before, 1, 0, 1, -1, -1, 0, 1, 0);
+    }
+
+    @Test
+    public void testSelectorServer() throws Exception {
+        long[] before = snapshot();
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress("localhost", 0));
+        int port = channel.socket().getLocalPort();
+        SelectorServer server = new SelectorServer(channel, 1);
+        Thread serverThread = new Thread() {
+                public void run() {
+                    try {
+                        server.serve();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+        try {
+            try (Socket socket = new Socket("localhost", port)) {
+                TestableClient client = new TestableClient(socket);
+                client.sendAll(new int[] { 5, 6 });
+                assertEquals("the sum 11 is positive", client.conclude());
+            }
+            while (server.completedSessions() < 1)
+                Thread.sleep(10);
+        }
+        finally {
+            server.close();
+            serverThread.join();
+        }
+        // "5\n6\n\n" in, "11\n" out, then "positive\n" in
+        assertIncrease(before, 1, 1, 0, 2, 14, 3, 0, 1);
+    }
+
+    @Test
+    public void testAdminEndpoint() throws Exception {
+        session(socket -> {
+                TestableClient client = new TestableClient(socket);
+                client.send(7);
+                client.conclude();
+            });
+
+        try (ServerSocket admin = metrics.startAdminEndpoint(0);
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), admin.getLocalPort())) {
+            socket.getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            BufferedReader page = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("HTTP/1.0 200 OK", page.readLine());
+
+            String body = "";
+            String line;
+            while ((line = page.readLine()) != null)
+                body += line + "\n";
+            assertTrue(body, body.contains("\ncompleted_sessions "));
+            assertTrue(body, body.contains("\nsession_duration_us{quantile=\"0.99\"} "));
+            assertTrue(body, body.contains("\ntime_to_sum_us_count "));
+        }
+    }
+}
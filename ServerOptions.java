@@ -0,0 +1,175 @@
+/**
+ * Settings of the long-running servers, collected in one place
+ * so that they can be given on the command line, e.g.
+ *
+ *     java -cp .:* ConcurrentServer 1234 --threads=64 --max-sessions=1000
+ *     java -cp .:* ConcurrentServer 1234 --virtual
+ *
+ * Fields are public and mutable on purpose: tests set them
+ * directly, `main` methods fill them in with `parse`.
+ */
+
+public class ServerOptions {
+    // number of platform threads serving sessions
+    public int threads = Runtime.getRuntime().availableProcessors() * 4;
+
+    // serve every session on its own virtual thread instead
+    // (needs Java 21; falls back to platform threads otherwise)
+    public boolean virtualThreads = false;
+
+    // upper bound on sessions served at the same time; the accept
+    // loop stops accepting while this many sessions are active
+    public int maxSessions = 10000;
+
+    // when `maxSessions` are active, accept new connections anyway
+    // and answer them with TestableServer.BUSY, instead of leaving
+    // them queued in the accept backlog
+    public boolean rejectWhenFull = false;
+
+    // length of the kernel's queue of connections not yet accepted
+    public int backlog = 50;
+
+    // listening sockets bound to the same port with SO_REUSEPORT,
+    // each with its own accepting thread (see ConcurrentServer.listen)
+    public int acceptors = 1;
+
+    // longest silence of a client in the middle of a dialogue
+    public int readTimeoutMillis = 30000;
+
+    // longest silence of a kept-alive client between two dialogues
+    public int idleTimeoutMillis = 60000;
+
+    // parse the numbers of every dialogue on the cores of the common
+    // ForkJoinPool, block by block (see ParallelParser)
+    public boolean parallelParse = false;
+
+    // most numbers a client may send in one dialogue
+    public long maxNumbers = Long.MAX_VALUE;
+
+    // checkpoints of broken resumable dialogues (see Checkpoints)
+    public int maxCheckpoints = 10000;
+    public int checkpointTtlMillis = 10 * 60 * 1000;
+
+    // most named counters (see Accumulators)
+    public int maxCounters = 10000;
+
+    // directory of the WriteAheadLog of the counters; null for none
+    public String walDir = null;
+
+    // size at which a log segment is compacted into the snapshot
+    public int walSegmentBytes = 64 << 20;
+
+    // local port of the ServerMetrics page; 0 for none
+    public int adminPort = 0;
+
+    /**
+     * Parse options of the form `--name=value` or `--flag`.
+     *
+     * @param args	command line arguments, without the port number
+     * @return the options, with defaults for everything not mentioned
+     */
+    public static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            String name = arg;
+            String value = null;
+            int eq = arg.indexOf('=');
+            if (eq >= 0) {
+                name = arg.substring(0, eq);
+                value = arg.substring(eq + 1);
+            }
+
+            switch (name) {
+            case "--threads":
+                options.threads = positive(name, value);
+                break;
+            case "--virtual":
+                options.virtualThreads = true;
+                break;
+            case "--max-sessions":
+                options.maxSessions = positive(name, value);
+                break;
+            case "--reject-when-full":
+                options.rejectWhenFull = true;
+                break;
+            case "--backlog":
+                options.backlog = positive(name, value);
+                break;
+            case "--acceptors":
+                options.acceptors = positive(name, value);
+                break;
+            case "--read-timeout":
+                options.readTimeoutMillis = positive(name, value);
+                break;
+            case "--idle-timeout":
+                options.idleTimeoutMillis = positive(name, value);
+                break;
+            case "--parallel-parse":
+                options.parallelParse = true;
+                break;
+            case "--max-numbers":
+                options.maxNumbers = positiveLong(name, value);
+                break;
+            case "--checkpoints":
+                options.maxCheckpoints = positive(name, value);
+                break;
+            case "--checkpoint-ttl":
+                options.checkpointTtlMillis = positive(name, value);
+                break;
+            case "--counters":
+                options.maxCounters = positive(name, value);
+                break;
+            case "--wal":
+                if (value == null || value.isEmpty())
+                    throw new IllegalArgumentException(name + " expects a directory");
+                options.walDir = value;
+                break;
+            case "--wal-segment":
+                options.walSegmentBytes = positive(name, value);
+                break;
+            case "--admin-port":
+                options.adminPort = positive(name, value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+        return options;
+    }
+
+    static int positive(String name, String value) {
+        if (value == null)
+            throw new IllegalArgumentException(name + " expects a value");
+        int n = Integer.parseInt(value);
+        if (n <= 0)
+            throw new IllegalArgumentException(name + " must be positive");
+        return n;
+    }
+
+    static long positiveLong(String name, String value) {
+        if (value == null)
+            throw new IllegalArgumentException(name + " expects a value");
+        long n = Long.parseLong(value);
+        if (n <= 0)
+            throw new IllegalArgumentException(name + " must be positive");
+        return n;
+    }
+
+    public static final String usage =
+        "  --threads=N         serve sessions on N platform threads\n" +
+        "  --virtual           serve each session on a virtual thread\n" +
+        "  --max-sessions=N    serve at most N sessions at the same time\n" +
+        "  --reject-when-full  answer \"busy\" beyond --max-sessions, instead of queueing\n" +
+        "  --backlog=N         queue at most N connections not yet accepted\n" +
+        "  --acceptors=N       accept on N sockets sharing the port (SO_REUSEPORT)\n" +
+        "  --read-timeout=MS   drop clients silent for MS milliseconds mid-dialogue\n" +
+        "  --idle-timeout=MS   close kept-alive connections idle for MS milliseconds\n" +
+        "  --parallel-parse    parse large uploads on all cores\n" +
+        "  --max-numbers=N     refuse dialogues of more than N numbers\n" +
+        "  --checkpoints=N     keep at most N checkpoints of broken dialogues\n" +
+        "  --checkpoint-ttl=MS keep checkpoints for MS milliseconds\n" +
+        "  --counters=N        keep at most N named counters\n" +
+        "  --wal=DIR           keep the counters durable in a write-ahead log in DIR\n" +
+        "  --wal-segment=BYTES compact the log into a snapshot every BYTES bytes\n" +
+        "  --admin-port=N      serve ServerMetrics on localhost:N\n";
+}
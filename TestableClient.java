@@ -10,6 +10,13 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.PrimitiveIterator;
+import java.util.stream.IntStream;
+import java.util.zip.*;
 
 public class TestableClient {
 
@@ -24,26 +31,501 @@ public class TestableClient {
      *     client.send(4);
      *     client.conclude();
      *
+     * Many numbers are better sent in one go:
+     *
+     *     client.sendAll(new int[] { 1, 2, 3, 4 });
+     *     client.conclude();
+     *
+     * The sum so far can be asked for at any time:
+     *
+     *     client.sendAll(new int[] { 1, 2 });
+     *     client.peekSum(); // 3
+     *
+     * One connection can carry several dialogues:
+     *
+     *     client.keepAlive();
+     *     client.sendAll(new int[] { 1, 2, 3, 4 });
+     *     client.conclude();
+     *     client.nextSession();
+     *     client.sendAll(new int[] { -5 });
+     *     client.conclude();
+     *
      * @param socket	a socket already connected to some server
      */
     TestableClient(Socket socket) throws IOException {
+        this(socket, false);
+    }
+
+    /**
+     * @param socket	a socket already connected to some server
+     * @param binary	whether to speak BinaryProtocol instead of text
+     */
+    TestableClient(Socket socket, boolean binary) throws IOException {
         this.socket = socket;
         this.fromServer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.toServer = new PrintWriter(socket.getOutputStream(), true /* autoflush */);
+        this.toServer = socket.getOutputStream();
+        setFlushThreshold(1 << 16);
+
+        if (binary) {
+            this.frame = ByteBuffer.allocate(4 + 4 * BinaryProtocol.FRAME_SIZE);
+            this.frame.position(4); // room for the count
+        }
     }
 
     Socket socket;
     BufferedReader fromServer;
-    PrintWriter toServer;
+    OutputStream toServer;
+
+    // text mode: encoded lines not yet written to `toServer`;
+    // `sendAll` writes them out once `flushThreshold` bytes are pending
+    byte[] out;
+    int outLength = 0;
+    int flushThreshold;
+
+    // numbers not yet sent in binary mode, or null in text mode
+    ByteBuffer frame;
+
+    // the sum received by the last `conclude()`
+    long lastSum;
+
+    // whether the server agreed to keep the connection open
+    boolean keepAlive = false;
+
+    // whether `toServer` compresses (see `compress`), and whether
+    // `send` flushes every line
+    boolean compressed = false;
+    boolean flushEveryLine = true;
+
+    // the last progress sum sent by the server, see `requestProgress`
+    long progressSum = 0;
+    boolean progress = false;
+
+    // progress of the current dialogue
+    boolean started = false;
+    boolean concluded = false;
+
+    /**
+     * The sum received from the server by the last `conclude()`.
+     * In text mode, it is within the range of `int`.
+     */
+    public long sum() {
+        return lastSum;
+    }
+
+    /**
+     * Ask the server to keep the connection open after `conclude()`,
+     * so that `nextSession()` can start another dialogue on it.
+     * Must be called before anything is sent.
+     *
+     * @return whether the server agreed; if not, the connection is
+     *         unusable and should be closed
+     */
+    public boolean keepAlive() throws IOException {
+        if (started || compressed)
+            throw new IllegalStateException("keepAlive() must come before the first number and compress()");
+        toServer.write((TestableServer.KEEP_ALIVE + "\n").getBytes(StandardCharsets.UTF_8));
+        toServer.flush();
+        keepAlive = TestableServer.KEEP_ALIVE.equals(readServerLine());
+        return keepAlive;
+    }
+
+    /**
+     * Compress everything sent from now on with Deflate (see
+     * TestableServer.DEFLATE). Must be called before anything is sent,
+     * but after `keepAlive()`.
+     *
+     * Every flush of the compressed stream costs a few bytes and
+     * restarts the compressor's output block, so with
+     * `flushEveryLine` false, `send` no longer flushes every line:
+     * data is flushed when `sendAll` has buffered enough, and when
+     * the client waits for an answer, as in `conclude()`.
+     *
+     * @param level	from Deflater.BEST_SPEED (1) to
+     *              Deflater.BEST_COMPRESSION (9), or
+     *              Deflater.DEFAULT_COMPRESSION
+     * @return whether the server agreed; if not, the connection is
+     *         unusable and should be closed
+     * @throws IllegalArgumentException for any other level, before
+     *         anything is sent
+     */
+    public boolean compress(int level, boolean flushEveryLine) throws IOException {
+        if (started || compressed)
+            throw new IllegalStateException("compress() must come before the first number");
+        // before the server is asked, which would expect compressed data
+        Deflater deflater = new Deflater(level);
+        toServer.write((TestableServer.DEFLATE + "\n").getBytes(StandardCharsets.UTF_8));
+        toServer.flush();
+        if (! TestableServer.DEFLATE.equals(readServerLine())) {
+            deflater.end();
+            return false;
+        }
+
+        // syncFlush: flush() pushes out all data written so far
+        toServer = new DeflaterOutputStream(toServer, deflater, 1 << 16, true);
+        compressed = true;
+        this.flushEveryLine = flushEveryLine;
+        return true;
+    }
+
+    /**
+     * Start a new dialogue on a kept-alive connection, after the
+     * previous one was concluded.
+     */
+    public void nextSession() {
+        if (! keepAlive)
+            throw new IllegalStateException("connection is not kept alive");
+        if (started && ! concluded)
+            throw new IllegalStateException("previous session was not concluded");
+        started = false;
+        concluded = false;
+        progress = false;
+    }
+
+    // called before anything of a dialogue is sent
+    void beginSession() throws IOException {
+        if (concluded)
+            throw new IllegalStateException(keepAlive ? "session concluded; call nextSession() first"
+                                                      : "session concluded");
+        if (! started) {
+            started = true;
+            // a binary client announces itself with the first byte
+            if (frame != null)
+                toServer.write(BinaryProtocol.MAGIC);
+        }
+    }
+
+    // longest line `sendAll` may encode: "-9223372036854775808\n"
+    static final int MAX_NUMBER_LINE = 21;
+
+    /**
+     * How many bytes `sendAll` collects before writing them to the
+     * socket. Larger batches mean fewer system calls and TCP segments.
+     */
+    public void setFlushThreshold(int bytes) throws IOException {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("flush threshold must be positive");
+        if (out != null)
+            flush();
+        flushThreshold = bytes;
+        out = new byte[bytes + MAX_NUMBER_LINE];
+    }
 
     /**
      * Send a line to server.
+     * In binary mode, the line must be an int; it is buffered until
+     * a frame is full or `conclude()` is called.
      * @param line	the line to be sent
      */
     public void send(Object line) throws IOException {
-        toServer.println(line.toString());
-        if (toServer.checkError())
-            throw new IOException(String.format("got error while trying to send the following line:\n\n%s\n\n", line));
+        beginSession();
+        if (frame != null) {
+            int value = line instanceof Integer ? (Integer) line : Integer.parseInt(line.toString());
+            putFrame(value);
+            return;
+        }
+
+        try {
+            writeOut();
+            toServer.write((line.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            if (flushEveryLine)
+                toServer.flush();
+        }
+        catch (IOException e) {
+            throw new IOException(String.format("got error while trying to send the following line:\n\n%s\n\n", line), e);
+        }
+    }
+
+    /**
+     * Send many numbers at once. They are encoded straight into a
+     * reusable buffer, which is written out only when it holds
+     * `flushThreshold` bytes, or by `flush()` and `conclude()`.
+     */
+    public void sendAll(int[] values) throws IOException {
+        sendAll(values, 0, values.length);
+    }
+
+    /**
+     * Like `sendAll(int[])`, for values[from, to).
+     */
+    public void sendAll(int[] values, int from, int to) throws IOException {
+        beginSession();
+        try {
+            for (int i = from; i < to; i++)
+                sendNumber(values[i]);
+        }
+        catch (IOException e) {
+            throw batchError(to - from, e);
+        }
+    }
+
+    /**
+     * Like `sendAll(int[])`. The server only accepts numbers in the
+     * range of `int`; in binary mode, others are rejected right here.
+     */
+    public void sendAll(long[] values) throws IOException {
+        beginSession();
+        try {
+            for (long value : values)
+                sendNumber(value);
+        }
+        catch (IOException e) {
+            throw batchError(values.length, e);
+        }
+    }
+
+    /**
+     * Like `sendAll(int[])`, for numbers computed on the fly.
+     */
+    public void sendAll(IntStream values) throws IOException {
+        beginSession();
+        long count = 0;
+        try {
+            PrimitiveIterator.OfInt it = values.iterator();
+            while (it.hasNext()) {
+                sendNumber(it.nextInt());
+                count++;
+            }
+        }
+        catch (IOException e) {
+            throw batchError(count, e);
+        }
+    }
+
+    IOException batchError(long count, IOException cause) {
+        return new IOException(String.format("got error while trying to send a batch of %d numbers", count), cause);
+    }
+
+    void sendNumber(long value) throws IOException {
+        if (frame != null) {
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+                throw new IllegalArgumentException(value + " does not fit into a binary frame");
+            putFrame((int) value);
+            return;
+        }
+
+        outLength = encodeLine(value, out, outLength);
+        if (outLength >= flushThreshold)
+            writeOut();
+    }
+
+    /**
+     * Encode `value` as a decimal line into out[p...], which must have
+     * room for MAX_NUMBER_LINE bytes.
+     *
+     * @return the index after the line
+     */
+    static int encodeLine(long value, byte[] out, int p) {
+        // encode the digits backwards, working on the negative value
+        // so that Long.MIN_VALUE needs no special case
+        if (value < 0)
+            out[p++] = '-';
+        else
+            value = -value;
+        int start = p;
+        do {
+            out[p++] = (byte) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = p - 1; i < j; i++, j--) {
+            byte b = out[i];
+            out[i] = out[j];
+            out[j] = b;
+        }
+        out[p++] = '\n';
+        return p;
+    }
+
+    // write the encoded lines to the socket, without flushing it
+    void writeOut() throws IOException {
+        if (progress)
+            drainProgress();
+        if (outLength > 0) {
+            toServer.write(out, 0, outLength);
+            outLength = 0;
+        }
+    }
+
+    /**
+     * Write everything sent so far to the server.
+     */
+    public void flush() throws IOException {
+        if (frame != null) {
+            if (frame.position() > 4)
+                sendFrame();
+        }
+        else {
+            writeOut();
+        }
+        toServer.flush();
+    }
+
+    // Take progress lines off the socket as we go, so that the server
+    // never blocks on a full socket buffer. Only progress lines can be
+    // waiting while we are still sending.
+    void drainProgress() throws IOException {
+        while (fromServer.ready()) {
+            String line = fromServer.readLine();
+            if (line == null || ! line.startsWith(TestableServer.PROGRESS_REPLY))
+                throw new ProtocolException("expected a progress sum, got " + line);
+            progressSum = Long.parseLong(line.substring(TestableServer.PROGRESS_REPLY.length()));
+        }
+    }
+
+    /**
+     * Name this dialogue, so that it can be continued on another
+     * connection if this one breaks (see TestableServer.RESUME).
+     * Must be called before any number is sent. Text protocol only.
+     *
+     * @return how many numbers of the dialogue the server has
+     *         received already; continue with the number after them
+     */
+    public long resume(String id) throws IOException {
+        if (frame != null)
+            throw new IllegalStateException("resuming needs the text protocol");
+        if (started)
+            throw new IllegalStateException("resume() must come before the first number");
+        if (id.isEmpty() || id.chars().anyMatch(c -> c <= ' '))
+            throw new IllegalArgumentException("dialogue id must be a non-empty word: " + id);
+        send(TestableServer.RESUME + " " + id);
+        toServer.flush();
+        String line = readServerLine();
+        if (line == null || ! line.startsWith(TestableServer.OFFSET_REPLY))
+            throw new ProtocolException("expected an offset, got " + line);
+        return Long.parseLong(line.substring(TestableServer.OFFSET_REPLY.length()));
+    }
+
+    // longest silence of the server in `sumResumable` before it
+    // counts as a broken connection
+    public static final int RESUME_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Sum `values` on `server` as the dialogue `id`, reconnecting and
+     * resuming where the server left off whenever the connection
+     * breaks, at most `attempts` times in all. A server that stays
+     * silent for RESUME_TIMEOUT_MILLIS counts as a broken connection.
+     *
+     * @return what `conclude()` returns
+     */
+    public static String sumResumable(InetSocketAddress server, String id,
+                                      int[] values, int attempts) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(server, RESUME_TIMEOUT_MILLIS);
+                socket.setSoTimeout(RESUME_TIMEOUT_MILLIS);
+                TestableClient client = new TestableClient(socket);
+                long offset = client.resume(id);
+                if (offset > values.length)
+                    throw new ProtocolException("server has " + offset + " of " + values.length + " numbers");
+                client.sendAll(values, (int) offset, values.length);
+                return client.conclude();
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Ask the server for the sum of the numbers sent so far in this
+     * dialogue, without ending it.
+     */
+    public long peekSum() throws IOException {
+        beginSession();
+        if (frame != null) {
+            if (frame.position() > 4)
+                sendFrame();
+            new DataOutputStream(toServer).writeInt(BinaryProtocol.PEEK);
+            toServer.flush();
+            return new DataInputStream(socket.getInputStream()).readLong();
+        }
+
+        flush();
+        toServer.write((TestableServer.PEEK + "\n").getBytes(StandardCharsets.UTF_8));
+        toServer.flush();
+        String line = readServerLine();
+        if (line == null || ! line.startsWith(TestableServer.PEEK_REPLY))
+            throw new ProtocolException("expected the sum so far, got " + line);
+        return Long.parseLong(line.substring(TestableServer.PEEK_REPLY.length()));
+    }
+
+    /**
+     * Have the server send the sum so far after every `every`
+     * numbers, for the rest of this dialogue. The sums are picked up
+     * whenever the client flushes; `progressSum()` returns the last.
+     * Text protocol only.
+     */
+    public void requestProgress(int every) throws IOException {
+        if (frame != null)
+            throw new IllegalStateException("progress sums need the text protocol");
+        if (every <= 0)
+            throw new IllegalArgumentException("progress interval must be positive");
+        send(TestableServer.PROGRESS + " " + every);
+        progress = true;
+    }
+
+    /**
+     * Have the numbers sent from now on in this dialogue also added to
+     * the server's long-lived counter `name` (see Accumulators).
+     * Text protocol only.
+     */
+    public void addTo(String name) throws IOException {
+        if (frame != null)
+            throw new IllegalStateException("counters need the text protocol");
+        send(TestableServer.COUNTER + " " + name);
+    }
+
+    /**
+     * The value of the server's counter `name`, including the numbers
+     * sent so far in this dialogue. Text protocol only.
+     */
+    public long getCounter(String name) throws IOException {
+        if (frame != null)
+            throw new IllegalStateException("counters need the text protocol");
+        send(TestableServer.GET + " " + name);
+        toServer.flush();
+        String line = readServerLine();
+        if (line == null || ! line.startsWith(TestableServer.PEEK_REPLY))
+            throw new ProtocolException("expected the value of " + name + ", got " + line);
+        return Long.parseLong(line.substring(TestableServer.PEEK_REPLY.length()));
+    }
+
+    /**
+     * What the server received over the last `seconds` seconds, from
+     * all clients, including the numbers sent so far in this
+     * dialogue (see WindowedStats). Text protocol only.
+     */
+    public WindowedStats.Window window(int seconds) throws IOException {
+        if (frame != null)
+            throw new IllegalStateException("windows need the text protocol");
+        send(TestableServer.WINDOW + " " + seconds);
+        toServer.flush();
+        String line = readServerLine();
+        if (line == null || ! line.startsWith(TestableServer.PEEK_REPLY))
+            throw new ProtocolException("expected a window, got " + line);
+        return WindowedStats.Window.parse(line.substring(TestableServer.PEEK_REPLY.length()));
+    }
+
+    /**
+     * The last sum so far that the server sent after `requestProgress`.
+     */
+    public long progressSum() {
+        return progressSum;
+    }
+
+    void putFrame(int value) throws IOException {
+        frame.putInt(value);
+        if (! frame.hasRemaining())
+            sendFrame();
+    }
+
+    // write the buffered numbers of binary mode as one frame
+    void sendFrame() throws IOException {
+        int count = (frame.position() - 4) / 4;
+        frame.putInt(0, count);
+        toServer.write(frame.array(), 0, frame.position());
+        frame.position(4);
     }
 
     /**
@@ -56,29 +538,122 @@ public class TestableClient {
      *         - "the sum 0 is neither positive nor negative"
      */
     public String conclude() throws IOException {
+        beginSession();
+        String result = frame != null ? concludeBinary() : concludeText();
+        concluded = true;
+        return result;
+    }
+
+    // a line from the server, which may be turning us away; progress
+    // lines are noted and skipped
+    String readServerLine() throws IOException {
+        String line;
+        while ((line = fromServer.readLine()) != null
+               && line.startsWith(TestableServer.PROGRESS_REPLY))
+            progressSum = Long.parseLong(line.substring(TestableServer.PROGRESS_REPLY.length()));
+        if (TestableServer.BUSY.equals(line))
+            throw new ConnectException("server busy");
+        return line;
+    }
+
+    String concludeText() throws IOException {
         send("");
-        int sum = Integer.parseInt(fromServer.readLine());
+        toServer.flush();
+        String line = readServerLine();
+        if (line == null)
+            throw new EOFException("connection closed before the sum");
+        int sum = Integer.parseInt(line);
+        lastSum = sum;
         String reply = sum > 0 ? "positive" : sum < 0 ? "negative" : "neither positive nor negative";
         send(reply);
+        toServer.flush();
         return String.format("the sum %d is %s", sum, reply);
     }
 
+    String concludeBinary() throws IOException {
+        flush();
+        sendFrame(); // count 0 ends the numbers
+        toServer.flush();
+
+        // read directly from the socket: nothing but the sum is
+        // coming, so `fromServer` has not buffered anything
+        long sum = new DataInputStream(socket.getInputStream()).readLong();
+        lastSum = sum;
+        toServer.write(BinaryProtocol.replyByte(sum));
+        toServer.flush();
+        return String.format("the sum %d is %s", sum, BinaryProtocol.replyText(sum));
+    }
+
+    /**
+     * Send the numbers in a file, one per line, as if each line were
+     * passed to `send`. The file must not contain an empty line.
+     *
+     * If the socket was opened through a blocking SocketChannel, as
+     * in `main`, and the client does not compress, the file goes to
+     * the socket with `FileChannel.transferTo`, which lets the kernel
+     * copy it without passing it through Java at all.
+     */
+    public void sendFile(Path path) throws IOException {
+        if (frame != null)
+            throw new IllegalStateException("sendFile needs the text protocol");
+        beginSession();
+        flush();
+
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            SocketChannel channel = socket.getChannel();
+            // a non-blocking channel (see Transport) would have
+            // transferTo spin while the socket buffer is full
+            if (channel != null && channel.isBlocking() && ! compressed) {
+                for (long offset = 0; offset < size; )
+                    offset += file.transferTo(offset, size - offset, channel);
+            }
+            else {
+                Files.copy(path, toServer);
+            }
+
+            // the last number needs its line terminator
+            ByteBuffer last = ByteBuffer.allocate(1);
+            if (size > 0 && file.read(last, size - 1) == 1) {
+                byte b = last.get(0);
+                if (b != '\n' && b != '\r')
+                    toServer.write('\n');
+            }
+        }
+        catch (IOException e) {
+            throw new IOException("got error while trying to send " + path, e);
+        }
+    }
+
     public static void main(String[] args) throws IOException {
-        if (args.length != 2) {
-            System.err.println("Usage: java Client <hostname> <port-number>");
+        // server is identified by a hostname and a port number, or
+        // by the path of a Unix domain socket (see Transport)
+        boolean unix = args.length > 0 && Transport.isUnix(args[0]);
+        int n = unix ? 1 : 2;
+        boolean binary = args.length == n + 1 && args[n].equals("--binary");
+        Path file = args.length == n + 2 && args[n].equals("--file") ? Paths.get(args[n + 1]) : null;
+        if (args.length != n && ! binary && file == null) {
+            System.err.println("Usage: java Client <hostname> <port-number> [--binary | --file <file-of-numbers>]\n" +
+                               "       java Client unix:<path> [--binary | --file <file-of-numbers>]");
             System.exit(1);
         }
 
-        // server is identified by a hostname and a port number
-        String hostname = args[0];
-        int port = Integer.parseInt(args[1]);
-
-        // try-with-resources is Java 7 only!
-        try (Socket clientSocket = new Socket(hostname, port)){
+        // open a TCP socket through a channel, so that `sendFile` can
+        // hand the file over to the kernel
+        try (Socket clientSocket = unix
+             ? Transport.connect(args[0])
+             : SocketChannel.open(new InetSocketAddress(args[0], Integer.parseInt(args[1]))).socket()){
 
-            TestableClient client = new TestableClient(clientSocket);
+            TestableClient client = new TestableClient(clientSocket, binary);
 
             System.out.println("Connection established.");
+
+            if (file != null) {
+                client.sendFile(file);
+                System.out.println(client.conclude());
+                return;
+            }
+
             System.out.println("Please input one number per line, terminated by a blank line.");
 
             BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
@@ -86,7 +661,7 @@ public class TestableClient {
 
             // send all user input to the server
             while (! "".equals(line = stdin.readLine())) {
-                System.out.println("sending: " + line);
+                Log.info("sending: %s", line);
                 client.send(line);
             }
 
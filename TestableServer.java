@@ -16,6 +16,10 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class TestableServer {
     public static void runServer(int port) throws IOException {
@@ -29,39 +33,458 @@ public class TestableServer {
     }
 
     public static void runServer(ServerSocket serverSocket) throws IOException {
-        // try-with-resources
-        try (// block until a client connects
-             Socket socket = serverSocket.accept();
+        // block until a client connects
+        try (Socket socket = serverSocket.accept()) {
+            serveClient(socket);
+        }
+    }
+
+    /**
+     * Client's first line asking to keep the connection open after
+     * the dialogue, for further sessions. The server confirms by
+     * sending the same line back.
+     *
+     * client: sends the line "keep-alive"
+     * server: sends the line "keep-alive"
+     * client and server: any number of dialogues, each ending with
+     *                    the client's reply line
+     * client: closes the socket connection
+     * server: closes the socket connection
+     */
+    public static final String KEEP_ALIVE = "keep-alive";
+
+    /**
+     * Client's first line, or second after KEEP_ALIVE, announcing that
+     * everything it sends after this line is compressed with Deflate
+     * (java.util.zip, zlib format). The server confirms by sending
+     * the same line back. What the server sends is not compressed.
+     * ServerMetrics counts the bytes received after decompression.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Line sent instead of a sum by a server that is too busy to
+     * serve the connection (see ServerOptions.rejectWhenFull). The
+     * server closes the connection right after sending it.
+     */
+    public static final String BUSY = "busy";
+
+    /**
+     * Line a client may send among its numbers to learn the sum so
+     * far, without ending the dialogue. The server answers at once
+     * with a line made of PEEK_REPLY and the sum, e.g. "=42".
+     */
+    public static final String PEEK = "?";
+    public static final String PEEK_REPLY = "=";
+
+    /**
+     * Line "progress N" a client may send among its numbers to have
+     * the server send the sum so far after every N numbers, as a line
+     * made of PROGRESS_REPLY and the sum, e.g. "~42", until the
+     * dialogue ends.
+     */
+    public static final String PROGRESS = "progress";
+    public static final String PROGRESS_REPLY = "~";
+
+    /**
+     * Line "resume ID" a client may send before its numbers, to name
+     * the dialogue. If the connection drops before the dialogue ends,
+     * the server keeps a checkpoint of it (see Checkpoints). The
+     * server answers with a line made of OFFSET_REPLY and how many
+     * numbers of the dialogue it has received already, e.g.
+     * "offset 1000"; the client continues with the number after them.
+     */
+    public static final String RESUME = "resume";
+    public static final String OFFSET_REPLY = "offset ";
+
+    /**
+     * Line "counter NAME" a client may send among its numbers to have
+     * every number after it added to the long-lived counter NAME as
+     * well (see Accumulators), until another "counter" line or the
+     * end of the dialogue. Line "get NAME" asks for the value of a
+     * counter; the server answers at once with a line made of
+     * PEEK_REPLY and the value, e.g. "=42".
+     */
+    public static final String COUNTER = "counter";
+    public static final String GET = "get";
+
+    /**
+     * Line "window N" a client may send among its numbers to learn
+     * the count, sum, minimum and maximum of all integers the server
+     * received over the last N seconds, from all clients (see
+     * WindowedStats). The server answers at once with a line made of
+     * PEEK_REPLY and the four, e.g. "=3 42 -1 40".
+     */
+    public static final String WINDOW = "window";
 
-             // read what the client sends
-             BufferedReader fromClient = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    /**
+     * Run the summing dialogue with one connected client, with the
+     * default timeouts and limits of ServerOptions.
+     */
+    public static void serveClient(Socket socket) throws IOException {
+        serveClient(socket, new ServerOptions());
+    }
+
+    /**
+     * Run the summing dialogue with one connected client.
+     * The caller owns `socket` and is responsible for closing it,
+     * so that long-running servers (see ConcurrentServer) can reuse
+     * this method for every connection they accept.
+     *
+     * A client that sends nothing for `options.readTimeoutMillis`
+     * during a dialogue fails with SocketTimeoutException, instead of
+     * holding on to the thread forever. A kept-alive connection that
+     * starts no new dialogue for `options.idleTimeoutMillis` is closed
+     * normally.
+     */
+    public static void serveClient(Socket socket, ServerOptions options) throws IOException {
+        ServerMetrics metrics = ServerMetrics.global;
+        metrics.connectionAccepted();
+        socket.setSoTimeout(options.readTimeoutMillis);
+
+        // count the bytes sent, for ServerMetrics
+        OutputStream out = metrics.countOutput(socket.getOutputStream());
+
+        // try-with-resources
+        try (// read what the client sends
+             InputStream in = socket.getInputStream();
 
              // send things to client
-             PrintWriter toClient = new PrintWriter(socket.getOutputStream(), true /* autoflush */);
+             PrintWriter toClient = new PrintWriter(out, true /* autoflush */);
 
              ){
 
-            String line;
-            int sum = 0;
+            // parse numbers straight from the bytes received, instead of
+            // making a String of every line (see IntLineParser)
+            ByteLineReader fromClient = new ByteLineReader(in);
+            fromClient.bytesRead = metrics.bytesIn;
+            SessionParser parser = new SessionParser(toClient);
+            parser.setMaxCount(options.maxNumbers);
+
+            // parse large uploads on several cores, if asked to
+            ParallelParser parallel = options.parallelParse ? new ParallelParser(ForkJoinPool.commonPool()) : null;
 
-            while ((line = fromClient.readLine()).length() > 0) {
-                System.out.println("received: " + line);
-                sum += Integer.parseInt(line);
+            boolean keepAlive = false;
+            if (fromClient.peek() == KEEP_ALIVE.charAt(0)) {
+                String line = readClientLine(fromClient);
+                if (! KEEP_ALIVE.equals(line))
+                    throw new NumberFormatException("For input string: \"" + line + "\"");
+                keepAlive = true;
+                toClient.println(KEEP_ALIVE);
             }
 
-            System.out.println("sending sum = " + sum);
+            if (fromClient.peek() == DEFLATE.charAt(0)) {
+                String line = readClientLine(fromClient);
+                if (! DEFLATE.equals(line))
+                    throw new NumberFormatException("For input string: \"" + line + "\"");
+                toClient.println(DEFLATE);
+                fromClient.inflate();
+            }
+
+            do {
+                // a kept-alive connection ends when the client closes it
+                // between two dialogues, or stays idle for too long
+                if (keepAlive && ! awaitSession(socket, fromClient, options))
+                    break;
+
+                parser.reset();
+                serveSession(fromClient, parser, parallel, toClient, out, options.maxNumbers);
+            } while (keepAlive);
+        }
+        catch (SocketTimeoutException e) {
+            metrics.readTimeouts.increment();
+            throw e;
+        }
+    }
+
+    // a line of text from the client, which may not be longer than a
+    // control line: a client sending an endless line is cut off
+    static String readClientLine(ByteLineReader fromClient) throws IOException {
+        try {
+            return fromClient.readLine(IntLineParser.MAX_CONTROL_LINE);
+        }
+        catch (ProtocolException e) {
+            ServerMetrics.global.parseError();
+            throw e;
+        }
+    }
+
+    /**
+     * Parses the numbers of a dialogue and answers the control lines
+     * a client may send among them.
+     */
+    static class SessionParser extends IntLineParser {
+        SessionParser(PrintWriter toClient) {
+            this.toClient = toClient;
+        }
+
+        final PrintWriter toClient;
+
+        // send the sum after every `progressEvery` numbers, if positive
+        long progressEvery = 0;
+
+        // name of the dialogue, if the client wants it resumable
+        String resumeId = null;
+
+        // the counter numbers are added to, if any, and the sum of
+        // the numbers not added to it yet
+        String counter = null;
+        long pending = 0;
+
+        // the last addition to a counter, for Accumulators.sync
+        long logged = 0;
+
+        // the numbers not recorded in WindowedStats yet, and when the
+        // first of them arrived
+        final WindowedStats.Batch batch = new WindowedStats.Batch();
+        long batchMillis = 0;
+
+        // the time windows the numbers go to
+        WindowedStats stats = WindowedStats.global;
+
+        @Override
+        public void reset() {
+            super.reset();
+            progressEvery = 0;
+            resumeId = null;
+            counter = null;
+            pending = 0;
+            logged = 0;
+            batch.clear();
+        }
+
+        // numbers arriving now: those of an earlier second are
+        // recorded in that second, not in the one they are published in
+        void tick() {
+            long now = stats.now();
+            if (now / 1000 != batchMillis / 1000) {
+                stats.record(batch, batchMillis);
+                batchMillis = now;
+            }
+        }
+
+        @Override
+        public int parse(byte[] buf, int from, int to) {
+            // the bytes in hand arrived at about the same time
+            tick();
+            return super.parse(buf, from, to);
+        }
+
+        // numbers added to the counter and recorded in WindowedStats
+        // in one go; handing over every number on its own would make
+        // sessions fight over the counter's cells
+        static final int PUBLISH_EVERY = 4096;
+
+        // the numbers of a block parsed by another thread, as if
+        // parsed here (see ParallelParser)
+        void addNumbers(WindowedStats.Batch numbers) {
+            tick();
+            sum += (int) numbers.sum;
+            count += numbers.count;
+            if (counter != null)
+                pending += numbers.sum;
+            batch.addAll(numbers);
+            publish();
+        }
+
+        // add what is pending to the counter and the time windows
+        void publish() {
+            long delta = pending;
+            pending = 0;
+            stats.record(batch, batchMillis);
+            if (counter != null && delta != 0)
+                logged = Accumulators.global.add(counter, delta);
+        }
+
+        // keep the state of a resumable dialogue whose connection broke
+        void checkpoint() {
+            if (resumeId != null) {
+                Log.info("checkpoint after %d numbers of %s", count(), resumeId);
+                Checkpoints.global.save(resumeId, sum(), count());
+            }
+        }
+
+        @Override
+        protected void onNumber(int value) {
+            Log.info("received: %d", value);
+            batch.add(value);
+            if (counter != null)
+                pending += value;
+            if (count() % PUBLISH_EVERY == 0)
+                publish();
+            if (progressEvery > 0 && count() % progressEvery == 0)
+                toClient.println(PROGRESS_REPLY + sum());
+        }
+
+        @Override
+        protected void onControl(String line) {
+            if (line.equals(PEEK)) {
+                toClient.println(PEEK_REPLY + sum());
+            }
+            else if (line.startsWith(RESUME + " ")) {
+                if (count() > 0 || resumeId != null)
+                    throw new NumberFormatException("resume must come before the numbers");
+                resumeId = line.substring(RESUME.length() + 1).trim();
+                Checkpoints.Checkpoint checkpoint = Checkpoints.global.take(resumeId);
+                if (checkpoint != null) {
+                    sum = checkpoint.sum;
+                    count = checkpoint.count;
+                }
+                toClient.println(OFFSET_REPLY + count());
+            }
+            else if (line.startsWith(COUNTER + " ")) {
+                publish();
+                String name = line.substring(COUNTER.length() + 1).trim();
+                try {
+                    Accumulators.global.counter(name);
+                    counter = name;
+                }
+                catch (IllegalArgumentException | IllegalStateException e) {
+                    throw new NumberFormatException(e.getMessage());
+                }
+            }
+            else if (line.startsWith(GET + " ")) {
+                publish();
+                toClient.println(PEEK_REPLY + Accumulators.global.get(line.substring(GET.length() + 1).trim()));
+            }
+            else if (line.startsWith(WINDOW + " ")) {
+                publish();
+                try {
+                    int seconds = Integer.parseInt(line.substring(WINDOW.length() + 1).trim());
+                    toClient.println(PEEK_REPLY + stats.last(seconds).format());
+                }
+                catch (IllegalArgumentException e) {
+                    throw new NumberFormatException(e.getMessage());
+                }
+            }
+            else if (line.startsWith(PROGRESS + " ")) {
+                progressEvery = Long.parseLong(line.substring(PROGRESS.length() + 1).trim());
+                if (progressEvery < 0)
+                    throw new NumberFormatException("negative progress interval");
+            }
+            else {
+                super.onControl(line);
+            }
+        }
+    }
+
+    // wait for the first byte of the next dialogue; false if the
+    // connection was closed or stayed idle
+    static boolean awaitSession(Socket socket, ByteLineReader fromClient,
+                                ServerOptions options) throws IOException {
+        socket.setSoTimeout(options.idleTimeoutMillis);
+        try {
+            if (fromClient.peek() < 0)
+                return false;
+        }
+        catch (EOFException e) {
+            // a Deflate stream that ends between two dialogues
+            return false;
+        }
+        catch (SocketTimeoutException e) {
+            Log.info("closing connection idle for %d ms", options.idleTimeoutMillis);
+            ServerMetrics.global.idleTimeouts.increment();
+            return false;
+        }
+        socket.setSoTimeout(options.readTimeoutMillis);
+        return true;
+    }
+
+    static void serveSession(ByteLineReader fromClient, SessionParser parser,
+                             ParallelParser parallel, PrintWriter toClient, OutputStream out,
+                             long maxNumbers) throws IOException {
+        ServerMetrics metrics = ServerMetrics.global;
+        long start = metrics.sessionStarted();
+        boolean ok = false;
+        try {
+            // a binary client announces itself with its first byte
+            if (fromClient.peek() == BinaryProtocol.MAGIC) {
+                BinaryProtocol.serve(fromClient, out, start, maxNumbers);
+                ok = true;
+                return;
+            }
+
+            try {
+                if (parallel != null)
+                    parallel.readNumbers(fromClient, parser);
+                else
+                    fromClient.readNumbers(parser);
+            }
+            catch (NumberFormatException e) {
+                metrics.parseError();
+                throw e;
+            }
+            catch (IOException e) {
+                parser.checkpoint();
+                throw e;
+            }
+            finally {
+                // numbers received count, whatever becomes of the dialogue
+                parser.publish();
+            }
+            // with a WriteAheadLog, the counters must be on disk before
+            // the client is told the dialogue is done
+            Accumulators.global.sync(parser.logged);
+            int sum = parser.sum();
+
+            Log.info("sending sum = %d", sum);
             toClient.println(sum);
             if (toClient.checkError())
                 throw new IOException("error on send");
+            metrics.sumSent(start);
+
+            String line = readClientLine(fromClient);
+            Log.info("client says %d is %s", sum, line);
+            ok = true;
+        }
+        finally {
+            metrics.sessionEnded(start, parser.count(), ok);
+        }
+    }
 
-            line = fromClient.readLine();
-            System.out.println(String.format("client says %d is %s", sum, line));
+    // largest part of a file mapped into memory at once
+    static final long MAP_SIZE = 1L << 30;
+
+    /**
+     * Sum a file of integers, one per line, with the same rules as
+     * the numbers sent by a client. The numbers end at an empty line
+     * or at the end of the file. The file is mapped into memory part
+     * by part, so that its bytes are parsed straight from the page
+     * cache, however large it is.
+     *
+     * @throws NumberFormatException on a line that is not an int
+     */
+    public static int sumFile(Path path) throws IOException {
+        IntLineParser parser = new IntLineParser();
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            for (long offset = 0; offset < size; offset += MAP_SIZE) {
+                MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY,
+                                                offset, Math.min(MAP_SIZE, size - offset));
+                if (parser.parse(map))
+                    return parser.sum();
+            }
         }
+
+        // end of file: end the last line, then the numbers
+        byte[] newline = { '\n' };
+        if (parser.parse(newline, 0, 1) < 0)
+            parser.parse(newline, 0, 1);
+        return parser.sum();
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 1)
-            System.err.println("Usage: java Server <port-number>");
+        if (args.length == 2 && args[0].equals("--file"))
+            System.out.println(sumFile(Paths.get(args[1])));
+        else if (args.length != 1)
+            System.err.println("Usage: java Server <port-number>\n" +
+                               "       java Server unix:<path>\n" +
+                               "       java Server --file <file-of-numbers>");
+        else if (Transport.isUnix(args[0])) {
+            try (ServerSocket serverSocket = Transport.listen(args[0], 50)) {
+                runServer(serverSocket);
+            }
+        }
         else
             runServer(Integer.parseInt(args[0]));
     }
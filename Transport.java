@@ -0,0 +1,506 @@
+/**
+ * Clients on the same host as the server need not go through the
+ * TCP stack at all: a Unix domain socket is a file that two
+ * processes talk through, without checksums, congestion control or
+ * loopback routing. Transport lets the same protocol run over
+ * either, selected by the address given on the command line:
+ *
+ *     1234                    TCP, port 1234 (servers listen on all interfaces)
+ *     localhost:1234          TCP, port 1234 of localhost (clients)
+ *     unix:/tmp/sum.sock      Unix domain socket /tmp/sum.sock
+ *
+ * e.g.
+ *
+ *     java -cp .:* ConcurrentServer unix:/tmp/sum.sock
+ *     java -cp .:* TestableClient unix:/tmp/sum.sock
+ *
+ * The servers and clients of this repository are written against
+ * ServerSocket and Socket. So that they keep working unchanged, a
+ * Unix domain connection is wrapped in a Socket too: `listen`
+ * returns a ServerSocket whose `accept` returns such Sockets, and
+ * `connect` returns one. Their streams honor `setSoTimeout` like
+ * TCP streams do, and `getChannel()` returns the channel underneath.
+ * `setTcpNoDelay` is ignored, so that TCP clients need not tell the
+ * two apart. Other TCP options, and the IP addresses and ports of
+ * either end, throw UnsupportedOperationException rather than act
+ * on a TCP socket that is not there.
+ *
+ * The socket file is deleted when the server socket is closed, or
+ * the JVM exits. A server that crashed leaves it behind, and the
+ * next `listen` on the same path fails until it is deleted.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class Transport {
+    /** Prefix of a Unix domain socket address. */
+    public static final String UNIX = "unix:";
+
+    public static boolean isUnix(String address) {
+        return address.startsWith(UNIX);
+    }
+
+    /**
+     * The address a client connects to: "unix:<path>" or
+     * "<hostname>:<port-number>".
+     */
+    public static SocketAddress parse(String address) {
+        if (isUnix(address))
+            return UnixDomainSocketAddress.of(address.substring(UNIX.length()));
+        int colon = address.lastIndexOf(':');
+        if (colon < 0)
+            throw new IllegalArgumentException("expected unix:<path> or <hostname>:<port-number>, got " + address);
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Listen on "unix:<path>", or on a TCP port of all interfaces.
+     */
+    public static ServerSocket listen(String address, int backlog) throws IOException {
+        if (! isUnix(address))
+            return new ServerSocket(Integer.parseInt(address), backlog);
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.bind(parse(address), backlog);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new UnixServerSocket(channel);
+    }
+
+    /**
+     * Connect to an InetSocketAddress or a UnixDomainSocketAddress.
+     */
+    public static Socket connect(SocketAddress address) throws IOException {
+        if (address instanceof InetSocketAddress) {
+            InetSocketAddress inet = (InetSocketAddress) address;
+            return new Socket(inet.getAddress(), inet.getPort());
+        }
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            return new UnixSocket(channel);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static Socket connect(String address) throws IOException {
+        return connect(parse(address));
+    }
+
+    /**
+     * A listening Unix domain socket, dressed as a ServerSocket.
+     */
+    static class UnixServerSocket extends ServerSocket {
+        UnixServerSocket(ServerSocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.path = ((UnixDomainSocketAddress) channel.getLocalAddress()).getPath();
+            // also when the JVM is stopped with Ctrl-C
+            path.toFile().deleteOnExit();
+        }
+
+        final ServerSocketChannel channel;
+        final Path path;
+
+        @Override
+        public Socket accept() throws IOException {
+            SocketChannel accepted = channel.accept();
+            try {
+                return new UnixSocket(accepted);
+            }
+            catch (IOException e) {
+                accepted.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel.isOpen()) {
+                channel.close();
+                Files.deleteIfExists(path);
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return ! channel.isOpen();
+        }
+
+        @Override
+        public boolean isBound() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return UnixDomainSocketAddress.of(path);
+        }
+
+        @Override
+        public ServerSocketChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public void bind(SocketAddress endpoint, int backlog) {
+            throw new UnsupportedOperationException("already bound to " + path);
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            throw new UnsupportedOperationException("a Unix domain socket has no IP address");
+        }
+
+        @Override
+        public int getLocalPort() {
+            throw new UnsupportedOperationException("a Unix domain socket has no port");
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) {
+            throw new UnsupportedOperationException("accept() on a Unix domain socket does not time out");
+        }
+
+        @Override
+        public <T> ServerSocket setOption(SocketOption<T> name, T value) throws IOException {
+            channel.setOption(name, value);
+            return this;
+        }
+
+        @Override
+        public <T> T getOption(SocketOption<T> name) throws IOException {
+            return channel.getOption(name);
+        }
+
+        @Override
+        public Set<SocketOption<?>> supportedOptions() {
+            return channel.supportedOptions();
+        }
+
+        @Override
+        public String toString() {
+            return "UnixServerSocket[" + path + "]";
+        }
+    }
+
+    /**
+     * A connected Unix domain socket, dressed as a Socket.
+     *
+     * The channel is non-blocking, and reads wait on a Selector of
+     * their own, so that they can time out; writes wait on another,
+     * so that a reader and a writer thread do not get in each
+     * other's way. Callers of `getChannel()` must mind that the
+     * channel is not in blocking mode.
+     */
+    static class UnixSocket extends Socket {
+        UnixSocket(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            channel.configureBlocking(false);
+            this.readSelector = Selector.open();
+            this.writeSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+
+        final SocketChannel channel;
+        final Selector readSelector;
+        final Selector writeSelector;
+
+        volatile int timeoutMillis = 0;
+
+        // bytes read by `available()` and not consumed yet
+        final ByteBuffer ahead = ByteBuffer.allocate(8192).flip();
+
+        final InputStream in = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0)
+                        return 0;
+                    if (ahead.hasRemaining()) {
+                        int n = Math.min(len, ahead.remaining());
+                        ahead.get(b, off, n);
+                        return n;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    int timeout = timeoutMillis;
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                    while (true) {
+                        int n = channel.read(buffer);
+                        if (n != 0)
+                            return n;
+                        long wait = 0;
+                        if (timeout > 0) {
+                            long left = deadline - System.nanoTime();
+                            if (left <= 0)
+                                throw new SocketTimeoutException("Read timed out");
+                            // rounded up, since 0 would wait forever
+                            wait = TimeUnit.NANOSECONDS.toMillis(left + 999999);
+                        }
+                        await(readSelector, wait);
+                    }
+                }
+
+                // a non-blocking channel cannot tell how many bytes are
+                // waiting without reading them
+                @Override
+                public int available() throws IOException {
+                    if (! ahead.hasRemaining()) {
+                        ahead.clear();
+                        int n = channel.read(ahead);
+                        ahead.flip();
+                        if (n < 0)
+                            return 0; // and the next read says so
+                    }
+                    return ahead.remaining();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    UnixSocket.this.close();
+                }
+            };
+
+        final OutputStream out = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    while (buffer.hasRemaining()) {
+                        // like TCP, writes wait for the reader forever
+                        if (channel.write(buffer) == 0)
+                            await(writeSelector, 0);
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    UnixSocket.this.close();
+                }
+            };
+
+        // wait until the selector's only key is ready, or `millis` pass
+        // (forever if 0)
+        void await(Selector selector, long millis) throws IOException {
+            try {
+                selector.select(millis);
+                selector.selectedKeys().clear();
+            }
+            catch (ClosedSelectorException e) {
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (isClosed())
+                throw new SocketException("Socket is closed");
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (isClosed())
+                throw new SocketException("Socket is closed");
+            return out;
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            if (timeout < 0)
+                throw new IllegalArgumentException("timeout < 0");
+            timeoutMillis = timeout;
+        }
+
+        @Override
+        public int getSoTimeout() {
+            return timeoutMillis;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+            // no Nagle's algorithm to turn off
+        }
+
+        @Override
+        public boolean getTcpNoDelay() {
+            return true;
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) {
+            throw new UnsupportedOperationException("SO_LINGER on a Unix domain socket");
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) {
+            throw new UnsupportedOperationException("SO_KEEPALIVE on a Unix domain socket");
+        }
+
+        @Override
+        public void setOOBInline(boolean on) {
+            throw new UnsupportedOperationException("urgent data on a Unix domain socket");
+        }
+
+        @Override
+        public void sendUrgentData(int data) {
+            throw new UnsupportedOperationException("urgent data on a Unix domain socket");
+        }
+
+        @Override
+        public void setTrafficClass(int tc) {
+            throw new UnsupportedOperationException("IP traffic class on a Unix domain socket");
+        }
+
+        @Override
+        public void setSendBufferSize(int size) throws SocketException {
+            setChannelOption(StandardSocketOptions.SO_SNDBUF, size);
+        }
+
+        @Override
+        public void setReceiveBufferSize(int size) throws SocketException {
+            setChannelOption(StandardSocketOptions.SO_RCVBUF, size);
+        }
+
+        <T> void setChannelOption(SocketOption<T> name, T value) throws SocketException {
+            try {
+                channel.setOption(name, value);
+            }
+            catch (SocketException e) {
+                throw e;
+            }
+            catch (IOException e) {
+                throw new SocketException(e.getMessage());
+            }
+        }
+
+        @Override
+        public <T> Socket setOption(SocketOption<T> name, T value) throws IOException {
+            channel.setOption(name, value);
+            return this;
+        }
+
+        @Override
+        public <T> T getOption(SocketOption<T> name) throws IOException {
+            return channel.getOption(name);
+        }
+
+        @Override
+        public Set<SocketOption<?>> supportedOptions() {
+            return channel.supportedOptions();
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) {
+            throw new UnsupportedOperationException("already connected");
+        }
+
+        @Override
+        public void bind(SocketAddress bindpoint) {
+            throw new UnsupportedOperationException("already bound");
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            throw new UnsupportedOperationException("a Unix domain socket has no IP address");
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            throw new UnsupportedOperationException("a Unix domain socket has no IP address");
+        }
+
+        @Override
+        public int getPort() {
+            throw new UnsupportedOperationException("a Unix domain socket has no port");
+        }
+
+        @Override
+        public int getLocalPort() {
+            throw new UnsupportedOperationException("a Unix domain socket has no port");
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            channel.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            channel.shutdownOutput();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            // closing the selectors wakes up threads waiting in `await`
+            readSelector.close();
+            writeSelector.close();
+            channel.close();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return ! channel.isOpen();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isBound() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            try {
+                return channel.getRemoteAddress();
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            try {
+                return channel.getLocalAddress();
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public String toString() {
+            return "UnixSocket[" + getRemoteSocketAddress() + "]";
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * A ConcurrentServer listening on a Unix domain socket (see
+ * Transport) must serve every kind of dialogue it serves over TCP,
+ * with the same timeouts.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
+
+public class TransportTests {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Log.Mode mode;
+    ServerOptions options = new ServerOptions();
+    ConcurrentServer server;
+    Thread serverThread;
+    Path path;
+    String address;
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+        options.threads = 8;
+        path = folder.getRoot().toPath().resolve("sum.sock");
+        address = Transport.UNIX + path;
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        if (server != null) {
+            server.close();
+            serverThread.join();
+        }
+        Log.configure(mode, 100, 1);
+    }
+
+    void startServer() throws IOException {
+        server = new ConcurrentServer(Transport.listen(address, options.backlog), options);
+        serverThread = new Thread() {
+                public void run() {
+                    try {
+                        server.serve();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+    }
+
+    Socket connect() throws IOException {
+        Socket socket = Transport.connect(address);
+        socket.setSoTimeout(10000); // fail rather than hang
+        return socket;
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals(UnixDomainSocketAddress.of("/tmp/sum.sock"), Transport.parse("unix:/tmp/sum.sock"));
+        assertEquals(new InetSocketAddress("localhost", 1234), Transport.parse("localhost:1234"));
+        try {
+            Transport.parse("localhost");
+            fail("no port number");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testText() throws Exception {
+        startServer();
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket);
+            client.send(1);
+            client.sendAll(new int[] { 2, 3, 4 });
+            assertEquals(10, client.peekSum());
+            assertEquals("the sum 10 is positive", client.conclude());
+        }
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        startServer();
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket, true);
+            client.sendAll(new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE });
+            assertEquals("the sum -4294967296 is negative", client.conclude());
+        }
+    }
+
+    @Test
+    public void testKeepAliveCompressed() throws Exception {
+        startServer();
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket);
+            assertTrue(client.keepAlive());
+            assertTrue(client.compress(Deflater.BEST_SPEED, false));
+            for (int session = 1; session <= 3; session++) {
+                client.sendAll(new int[] { session, session });
+                assertEquals("the sum " + 2 * session + " is positive", client.conclude());
+                client.nextSession();
+            }
+        }
+        assertEquals(0, server.failedSessions());
+    }
+
+    @Test
+    public void testLongUpload() throws Exception {
+        startServer();
+        int[] values = new int[1000000];
+        Arrays.fill(values, 1);
+        try (Socket socket = connect()) {
+            TestableClient client = new TestableClient(socket);
+            client.sendAll(values);
+            assertEquals("the sum 1000000 is positive", client.conclude());
+        }
+    }
+
+    @Test
+    public void testParallelParse() throws Exception {
+        // reads ahead as long as the socket says more bytes are there
+        options.parallelParse = true;
+        testLongUpload();
+    }
+
+    @Test
+    public void testSocketMethods() throws Exception {
+        startServer();
+        try (Socket socket = connect()) {
+            assertTrue(socket.getChannel().isOpen());
+            // ignored, so that TCP clients need not tell the two apart
+            socket.setTcpNoDelay(true);
+            socket.setSendBufferSize(1 << 16);
+            try {
+                socket.setSoLinger(true, 0);
+                fail("SO_LINGER on a Unix domain socket");
+            }
+            catch (UnsupportedOperationException e) {
+                // expected
+            }
+            try {
+                socket.getInetAddress();
+                fail("IP address of a Unix domain socket");
+            }
+            catch (UnsupportedOperationException e) {
+                // expected
+            }
+
+            socket.getOutputStream().write("5\n\n".getBytes(StandardCharsets.UTF_8));
+            InputStream in = socket.getInputStream();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (in.available() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue(in.available() > 0);
+            // bytes counted by `available` are still there to be read
+            assertEquals("5", new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).readLine());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testManyClients() throws Exception {
+        startServer();
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int c = 0; c < 100; c++) {
+                final int value = c;
+                results.add(pool.submit(() -> {
+                            try (Socket socket = connect()) {
+                                TestableClient client = new TestableClient(socket);
+                                client.sendAll(new int[] { value, -1 });
+                                return client.conclude();
+                            }
+                        }));
+            }
+            for (int c = 0; c < 100; c++)
+                assertEquals("the sum " + (c - 1) + " is " + (c > 1 ? "positive" : c == 1 ? "neither positive nor negative" : "negative"),
+                             results.get(c).get());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        options.readTimeoutMillis = 200;
+        startServer();
+        try (Socket socket = connect()) {
+            // a number, but never the empty line: the server gives up
+            socket.getOutputStream().write("1\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void testClientTimeout() throws Exception {
+        startServer();
+        try (Socket socket = connect()) {
+            socket.setSoTimeout(100);
+            socket.getOutputStream().write("1\n".getBytes(StandardCharsets.UTF_8));
+            long start = System.nanoTime();
+            try {
+                socket.getInputStream().read();
+                fail("the server has nothing to say yet");
+            }
+            catch (SocketTimeoutException e) {
+                assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            }
+        }
+    }
+
+    @Test
+    public void testCloseWakesReader() throws Exception {
+        startServer();
+        Socket socket = connect();
+        socket.setSoTimeout(0);
+        Thread closer = new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                    socket.close();
+                }
+                catch (Exception e) {
+                    // the read below hangs, and the test times out
+                }
+            });
+        closer.start();
+        try {
+            socket.getInputStream().read();
+            fail("read from a closed socket");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        closer.join();
+    }
+
+    @Test
+    public void testSocketFile() throws Exception {
+        startServer();
+        assertTrue(Files.exists(path));
+        try {
+            Transport.listen(address, 1).close();
+            fail("two servers on one path");
+        }
+        catch (BindException e) {
+            // expected
+        }
+        server.close();
+        serverThread.join();
+        assertFalse(Files.exists(path));
+        server = null;
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Every session knows its own sum, and nothing else. WindowedStats
+ * knows the integers received by all sessions of the JVM over time:
+ * their count, sum, minimum and maximum, per second for the last
+ * hour and per minute for the last day, so that questions like "what
+ * came in over the last 60 seconds" are answered at once:
+ *
+ *     WindowedStats.global.last(60)      // count=... sum=... min=... max=...
+ *
+ * Clients ask with the line "window N" (see TestableServer.WINDOW).
+ *
+ * Both time series are rings of slots: slot `t % size` holds the
+ * bucket of second (or minute) t, until second t + size takes it
+ * over. Every bucket is tagged with the second it holds, so that a
+ * reader skips buckets not written to since the last round.
+ *
+ * Recording must cost the sessions next to nothing. A session adds
+ * up its numbers in a Batch of its own, which needs no
+ * synchronization, and records the batch every few thousand
+ * numbers, whenever its numbers start arriving in a new second, and
+ * at the end of the dialogue (see TestableServer.SessionParser).
+ * Recording takes no lock. It is a few atomic additions, plus
+ * compare-and-set for the minimum and maximum, which only retry
+ * while other threads set a new extreme. The first batch of a new
+ * second swaps a fresh bucket into its slot with compare-and-set;
+ * that allocates one small bucket per second, and recording into it
+ * allocates nothing. A batch whose slot has been taken over by a
+ * later second in the meantime is dropped.
+ */
+
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+
+public class WindowedStats {
+    // shared by all sessions of TestableServer
+    public static final WindowedStats global = new WindowedStats(System::currentTimeMillis);
+
+    /** Longest window of the per-second ring. */
+    public static final int SECONDS = 3600;
+
+    /** Longest window of all: one day, per minute. */
+    public static final int MINUTES = 24 * 60;
+
+    /**
+     * @param clock	milliseconds since some fixed point in time,
+     *              e.g. System::currentTimeMillis
+     */
+    public WindowedStats(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    final LongSupplier clock;
+
+    // one bucket more than the longest window, so that the bucket
+    // taken over by the next second is never part of a window
+    final Ring seconds = new Ring(1000, SECONDS + 1);
+    final Ring minutes = new Ring(60 * 1000, MINUTES + 1);
+
+    /** The integers received over a window of time. */
+    public static class Window {
+        Window(long count, long sum, long min, long max) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public final long count;
+        public final long sum;
+
+        /** Smallest and largest integer; 0 if there were none. */
+        public final long min;
+        public final long max;
+
+        /** As sent by the server: "count sum min max" */
+        public String format() {
+            return count + " " + sum + " " + min + " " + max;
+        }
+
+        public static Window parse(String text) {
+            String[] fields = text.trim().split(" ");
+            if (fields.length != 4)
+                throw new NumberFormatException("expected count, sum, min and max, got " + text);
+            return new Window(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                              Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d sum=%d min=%d max=%d", count, sum, min, max);
+        }
+    }
+
+    /**
+     * Integers added up by one thread, to be recorded in one go.
+     * Not thread-safe.
+     */
+    public static class Batch {
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        public void add(long value) {
+            count++;
+            sum += value;
+            if (value < min)
+                min = value;
+            if (value > max)
+                max = value;
+        }
+
+        /** Add the integers of another batch. */
+        public void addAll(Batch other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        public void clear() {
+            count = 0;
+            sum = 0;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Add the integers of `batch` to the current second and minute,
+     * and clear the batch.
+     */
+    public void record(Batch batch) {
+        record(batch, clock.getAsLong());
+    }
+
+    /**
+     * Like `record(batch)`, for integers received at `millis` on the
+     * clock, such as a batch started in a second that is over. A
+     * batch older than the longest window is dropped.
+     */
+    public void record(Batch batch, long millis) {
+        if (batch.count == 0)
+            return;
+        seconds.record(millis, batch);
+        minutes.record(millis, batch);
+        batch.clear();
+    }
+
+    /** The time on this WindowedStats' clock. */
+    public long now() {
+        return clock.getAsLong();
+    }
+
+    /**
+     * The integers received over the last `n` seconds, this one
+     * included. Up to an hour, the window is exact to the second;
+     * beyond, it is made of whole minutes, this one included.
+     */
+    public Window last(int n) {
+        if (n <= 0 || n > MINUTES * 60)
+            throw new IllegalArgumentException("window must be 1 to " + MINUTES * 60 + " seconds");
+        long now = clock.getAsLong();
+        if (n <= SECONDS)
+            return seconds.last(now, n);
+        return minutes.last(now, (n + 59) / 60);
+    }
+
+    // buckets of `millis` milliseconds each
+    static class Ring {
+        Ring(long millis, int size) {
+            this.millis = millis;
+            this.size = size;
+            this.buckets = new AtomicReferenceArray<>(size);
+        }
+
+        final long millis;
+        final int size;
+
+        // slot `epoch % size` holds the bucket of `epoch`, if any
+        final AtomicReferenceArray<Bucket> buckets;
+
+        // the integers of one bucket (now / millis)
+        static class Bucket {
+            Bucket(long epoch) {
+                this.epoch = epoch;
+            }
+
+            final long epoch;
+            final LongAdder count = new LongAdder();
+            final LongAdder sum = new LongAdder();
+            final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+            final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+        }
+
+        void record(long now, Batch batch) {
+            long epoch = now / millis;
+            int i = (int) (epoch % size);
+            Bucket bucket = buckets.get(i);
+            while (bucket == null || bucket.epoch < epoch) {
+                // the first batch of a new epoch takes the slot over;
+                // if another thread got there first, its bucket it is
+                Bucket fresh = new Bucket(epoch);
+                if (buckets.compareAndSet(i, bucket, fresh))
+                    bucket = fresh;
+                else
+                    bucket = buckets.get(i);
+            }
+            if (bucket.epoch != epoch)
+                return; // taken over by a later epoch
+            bucket.count.add(batch.count);
+            bucket.sum.add(batch.sum);
+            long m;
+            while (batch.min < (m = bucket.min.get()) && ! bucket.min.compareAndSet(m, batch.min))
+                ;
+            while (batch.max > (m = bucket.max.get()) && ! bucket.max.compareAndSet(m, batch.max))
+                ;
+        }
+
+        // the last `n` buckets, up to the one of `now`
+        Window last(long now, int n) {
+            long newest = now / millis;
+            long count = 0;
+            long sum = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (long epoch = newest - n + 1; epoch <= newest; epoch++) {
+                if (epoch < 0)
+                    continue;
+                Bucket bucket = buckets.get((int) (epoch % size));
+                if (bucket == null || bucket.epoch != epoch)
+                    continue;
+                count += bucket.count.sum();
+                sum += bucket.sum.sum();
+                min = Math.min(min, bucket.min.get());
+                max = Math.max(max, bucket.max.get());
+            }
+            return count == 0 ? new Window(0, 0, 0, 0) : new Window(count, sum, min, max);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * WindowedStats must add up what was recorded within a window of
+ * time, forget what was recorded before it, and record without
+ * allocating.
+ *
+ * The unit tests drive a clock of their own. The global windows see
+ * the numbers of all tests running at the same time, so that the
+ * end-to-end test only checks for lower bounds.
+ */
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import org.junit.*;
+
+import java.lang.management.ManagementFactory;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WindowedStatsTests {
+    @ClassRule
+    public static final ServerFixture server = ServerFixture.shared();
+
+    Log.Mode mode;
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+    }
+
+    @After
+    public void restore() {
+        Log.configure(mode, 100, 1);
+    }
+
+    final AtomicLong now = new AtomicLong(1_000_000_000L);
+    final WindowedStats stats = new WindowedStats(now::get);
+
+    void record(int... values) {
+        WindowedStats.Batch batch = new WindowedStats.Batch();
+        for (int value : values)
+            batch.add(value);
+        stats.record(batch);
+        assertEquals(0, batch.count);
+    }
+
+    void assertWindow(String expected, int seconds) {
+        assertEquals(expected, stats.last(seconds).toString());
+    }
+
+    @Test
+    public void testEmpty() {
+        assertWindow("count=0 sum=0 min=0 max=0", 1);
+        assertWindow("count=0 sum=0 min=0 max=0", 86400);
+    }
+
+    @Test
+    public void testSeconds() {
+        record(1, 2, 3);
+        now.addAndGet(1000);
+        record(-5);
+        now.addAndGet(500);
+        record(10);
+        assertWindow("count=2 sum=5 min=-5 max=10", 1);
+        assertWindow("count=5 sum=11 min=-5 max=10", 2);
+        assertWindow("count=5 sum=11 min=-5 max=10", 60);
+
+        // the first second falls out of the window
+        now.addAndGet(59 * 1000);
+        assertWindow("count=2 sum=5 min=-5 max=10", 60);
+        now.addAndGet(1000);
+        assertWindow("count=0 sum=0 min=0 max=0", 60);
+        assertWindow("count=5 sum=11 min=-5 max=10", 3600);
+    }
+
+    @Test
+    public void testWrapAround() {
+        record(7);
+        // the bucket of this second is taken over an hour later
+        now.addAndGet((WindowedStats.SECONDS + 1) * 1000L);
+        assertWindow("count=0 sum=0 min=0 max=0", 1);
+        record(8);
+        assertWindow("count=1 sum=8 min=8 max=8", WindowedStats.SECONDS);
+    }
+
+    @Test
+    public void testMinutes() {
+        record(4);
+        now.addAndGet(2 * 3600 * 1000L);
+        record(6);
+        // beyond an hour, whole minutes
+        assertWindow("count=1 sum=6 min=6 max=6", 3601);
+        assertWindow("count=2 sum=10 min=4 max=6", 3 * 3600);
+        now.addAndGet(24 * 3600 * 1000L);
+        assertWindow("count=0 sum=0 min=0 max=0", 86400);
+    }
+
+    @Test
+    public void testSessionAcrossSeconds() {
+        // a slow client: two numbers, and the last one a second later
+        TestableServer.SessionParser parser = new TestableServer.SessionParser(new PrintWriter(new StringWriter()));
+        parser.stats = stats;
+        byte[] first = "1\n2\n".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "30\n\n".getBytes(StandardCharsets.UTF_8);
+        assertEquals(-1, parser.parse(first, 0, first.length));
+        now.addAndGet(1000);
+        assertEquals(second.length, parser.parse(second, 0, second.length));
+        parser.publish();
+
+        // each number in the second it arrived in
+        assertWindow("count=1 sum=30 min=30 max=30", 1);
+        assertWindow("count=3 sum=33 min=1 max=30", 2);
+    }
+
+    @Test
+    public void testInvalidWindow() {
+        for (int seconds : new int[] { 0, -1, 86401 }) {
+            try {
+                stats.last(seconds);
+                fail("window of " + seconds + " seconds");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentRecording() throws Exception {
+        int threads = 16;
+        int rounds = 10000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                running.add(pool.submit(() -> {
+                            WindowedStats.Batch batch = new WindowedStats.Batch();
+                            for (int i = 0; i < rounds; i++) {
+                                batch.add(id);
+                                stats.record(batch);
+                            }
+                            return null;
+                        }));
+            }
+            for (Future<?> future : running)
+                future.get();
+        }
+        finally {
+            pool.shutdown();
+        }
+        long sum = (long) rounds * threads * (threads - 1) / 2;
+        assertWindow("count=" + threads * rounds + " sum=" + sum + " min=0 max=" + (threads - 1), 1);
+    }
+
+    @Test
+    public void testNoAllocation() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+
+        WindowedStats.Batch batch = new WindowedStats.Batch();
+        Runnable recordMany = () -> {
+            for (int i = 0; i < 100000; i++) {
+                batch.add(i);
+                stats.record(batch);
+                // a new second takes over a bucket now and then
+                if (i % 10000 == 0)
+                    now.addAndGet(1000);
+            }
+        };
+        recordMany.run(); // warm up
+        long before = threads.getThreadAllocatedBytes(thread);
+        recordMany.run();
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // measuring and the buckets of 10 new seconds may allocate a
+        // little, but 100000 records nothing
+        assertTrue(allocated + " bytes allocated", allocated < 10000);
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        try (Socket socket = server.connect()) {
+            TestableClient client = new TestableClient(socket);
+            client.sendAll(new int[] { -123456789, 5, 123456789 });
+            WindowedStats.Window window = client.window(60);
+            assertTrue(window.toString(), window.count >= 3);
+            assertTrue(window.toString(), window.min <= -123456789);
+            assertTrue(window.toString(), window.max >= 123456789);
+            assertEquals("the sum 5 is positive", client.conclude());
+        }
+        // and through the metrics
+        String metrics = ServerMetrics.global.render();
+        assertTrue(metrics, metrics.contains("received_count{window=\"60s\"} "));
+    }
+}
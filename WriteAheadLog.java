@@ -0,0 +1,423 @@
+/**
+ * Accumulators live in memory and die with the server. A
+ * WriteAheadLog makes them durable: every addition to a counter is
+ * appended to a log file in a directory of its own, and a session
+ * sends its sum only once its additions are on disk. After a crash,
+ * `open` rebuilds the counters from what the log holds.
+ *
+ *     try (WriteAheadLog log = WriteAheadLog.open(dir, Accumulators.global, 64 << 20)) {
+ *         ... serve ...
+ *     }
+ *
+ * Writing to disk is cheap; waiting for the disk (`force`, i.e.
+ * fsync) is not, and one fsync per session would bound a server to a
+ * few hundred sessions per second. So sessions do not write
+ * themselves: `append` only puts a record into a buffer, and `sync`
+ * waits until a background thread has written the buffer with one
+ * FileChannel write and forced it with one fsync. While that thread
+ * waits for the disk, the records of all other sessions pile up in
+ * the buffer and go out with the next fsync together ("group
+ * commit"): the busier the server, the more sessions share one.
+ *
+ * The log is cut into segments of about `segmentBytes`. Whenever a
+ * segment is full, a background thread compacts it: it folds the
+ * records of all full segments into the snapshot, a file with the
+ * value of every counter, and deletes those segments. `open` reads
+ * the snapshot and then only the segments after it.
+ *
+ * Files in the directory:
+ *
+ *     snapshot                 counters as of the end of segment K
+ *     segment-<N>.log          records of segment N > K
+ *
+ * A record is the name of the counter, the amount added and a CRC32
+ * of both. A crash in the middle of a write leaves a torn record at
+ * the end of the last segment, which `open` cuts off: it was never
+ * synced, so no client was told it was.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+public class WriteAheadLog implements Closeable {
+
+    /**
+     * Recover the counters of `dir` into `accumulators`, and log every
+     * addition to `accumulators` from now on.
+     *
+     * @param dir			directory of the log; created if missing
+     * @param segmentBytes	size at which a segment is closed and
+     *                      compacted into the snapshot
+     */
+    public static WriteAheadLog open(Path dir, Accumulators accumulators, long segmentBytes) throws IOException {
+        if (segmentBytes <= 0)
+            throw new IllegalArgumentException("segment size must be positive");
+        Files.createDirectories(dir);
+        WriteAheadLog log = new WriteAheadLog(dir, accumulators, segmentBytes);
+        log.recover();
+        log.startSegment(log.lastSegment() + 1);
+        log.writer.start();
+        // the segments recovered from are full as far as we are concerned
+        log.compactor.execute(log::compactQuietly);
+        accumulators.log = log;
+        return log;
+    }
+
+    WriteAheadLog(Path dir, Accumulators accumulators, long segmentBytes) {
+        this.dir = dir;
+        this.accumulators = accumulators;
+        this.segmentBytes = segmentBytes;
+    }
+
+    final Path dir;
+    final Accumulators accumulators;
+    final long segmentBytes;
+
+    // the segment being written, and its number
+    FileChannel segment;
+    volatile long segmentNumber;
+
+    // records appended and not written yet, guarded by `this`;
+    // `spare` is the buffer the writer thread writes from
+    ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+
+    // sequence numbers: of the last record appended, and of the last
+    // one on disk; guarded by `this`
+    long appended = 0;
+    long durable = 0;
+
+    boolean closed = false;
+    IOException failure = null;
+
+    final AtomicLong syncs = new AtomicLong();
+    final AtomicLong records = new AtomicLong();
+
+    final Thread writer = new Thread(this::writeLoop, "wal-writer");
+
+    // folds full segments into the snapshot, one at a time
+    final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /** Number of fsyncs so far; each covers one batch of records. */
+    public long syncs() {
+        return syncs.get();
+    }
+
+    /** Number of records written so far. */
+    public long records() {
+        return records.get();
+    }
+
+    // longest record: length byte, a name of 64 bytes, delta, CRC32
+    static final int MAX_RECORD = 1 + 64 + 8 + 4;
+
+    /**
+     * Log that `delta` was added to counter `name`. Returns at once;
+     * the record is durable after `sync` with the returned number.
+     */
+    public synchronized long append(String name, long delta) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 64)
+            throw new IllegalArgumentException("counter name too long: " + name);
+        if (failure != null || closed)
+            return Long.MAX_VALUE; // never durable: `sync` fails
+        if (pending.remaining() < MAX_RECORD) {
+            ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        int start = pending.position();
+        pending.put((byte) bytes.length);
+        pending.put(bytes);
+        pending.putLong(delta);
+        CRC32 crc = new CRC32();
+        crc.update(pending.array(), start, pending.position() - start);
+        pending.putInt((int) crc.getValue());
+        notifyAll();
+        return ++appended;
+    }
+
+    /**
+     * Wait until the record numbered `sequence`, and all before it,
+     * are on disk.
+     *
+     * @throws IOException if writing the log failed, or it was closed
+     *         before the record was written
+     */
+    public synchronized void sync(long sequence) throws IOException {
+        try {
+            while (durable < sequence && failure == null && ! (closed && ! writer.isAlive()))
+                wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the log");
+        }
+        if (durable < sequence)
+            throw failure != null ? new IOException("write-ahead log failed", failure)
+                                  : new IOException("write-ahead log closed");
+    }
+
+    // the writer thread: write and force whatever has been appended
+    // since the last round, until closed and drained
+    void writeLoop() {
+        try {
+            while (true) {
+                long batch;
+                ByteBuffer buffer;
+                synchronized (this) {
+                    while (appended == durable && ! closed)
+                        wait();
+                    if (appended == durable)
+                        return; // closed, nothing left
+                    batch = appended;
+                    buffer = pending;
+                    pending = spare;
+                    pending.clear();
+                    spare = buffer;
+                }
+
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    segment.write(buffer);
+                segment.force(false);
+                syncs.incrementAndGet();
+
+                synchronized (this) {
+                    records.addAndGet(batch - durable);
+                    durable = batch;
+                    notifyAll();
+                }
+
+                if (segment.size() >= segmentBytes) {
+                    segment.close();
+                    startSegment(segmentNumber + 1);
+                    compactor.execute(this::compactQuietly);
+                }
+            }
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        }
+        catch (InterruptedException e) {
+            synchronized (this) {
+                failure = new InterruptedIOException("log writer interrupted");
+                notifyAll();
+            }
+        }
+        finally {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    void startSegment(long number) throws IOException {
+        segment = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentNumber = number;
+        forceDirectory();
+    }
+
+    Path segmentPath(long number) {
+        return dir.resolve(String.format("segment-%012d.log", number));
+    }
+
+    Path snapshotPath() {
+        return dir.resolve("snapshot");
+    }
+
+    // numbers of the segment files in `dir`, in order
+    List<Long> segments() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length())));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    long lastSegment() throws IOException {
+        List<Long> numbers = segments();
+        long last = numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1);
+        return Math.max(last, readSnapshot(new TreeMap<>()));
+    }
+
+    // the snapshot's counters go into `values`; returns the number of
+    // the last segment it includes, 0 if there is no snapshot
+    long readSnapshot(Map<String, Long> values) throws IOException {
+        if (! Files.exists(snapshotPath()))
+            return 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath())))) {
+            long through = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+                values.put(in.readUTF(), in.readLong());
+            return through;
+        }
+    }
+
+    /**
+     * Add up the records of segment `number` into `values`.
+     *
+     * @return the length of the valid records; shorter than the file
+     *         if it ends with a torn record
+     */
+    long readSegment(long number, Map<String, Long> values) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(segmentPath(number)));
+        CRC32 crc = new CRC32();
+        while (bytes.hasRemaining()) {
+            int start = bytes.position();
+            int length = bytes.get(start) & 0xFF;
+            if (length > 64 || bytes.remaining() < 1 + length + 8 + 4)
+                break;
+            crc.reset();
+            crc.update(bytes.array(), start, 1 + length + 8);
+            String name = new String(bytes.array(), start + 1, length, StandardCharsets.UTF_8);
+            bytes.position(start + 1 + length);
+            long delta = bytes.getLong();
+            if (bytes.getInt() != (int) crc.getValue()) {
+                bytes.position(start);
+                break;
+            }
+            values.merge(name, delta, Long::sum);
+        }
+        return bytes.position();
+    }
+
+    // rebuild the counters from the snapshot and the segments after it
+    void recover() throws IOException {
+        Map<String, Long> values = new TreeMap<>();
+        long through = readSnapshot(values);
+        List<Long> numbers = segments();
+        for (int i = 0; i < numbers.size(); i++) {
+            long number = numbers.get(i);
+            if (number <= through) {
+                // compacted, but not deleted before a crash
+                Files.delete(segmentPath(number));
+                continue;
+            }
+            long valid = readSegment(number, values);
+            if (valid < Files.size(segmentPath(number))) {
+                if (i < numbers.size() - 1)
+                    throw new IOException("corrupt record in " + segmentPath(number) + " at byte " + valid);
+                // a torn write at the very end: never synced
+                try (FileChannel file = FileChannel.open(segmentPath(number), StandardOpenOption.WRITE)) {
+                    file.truncate(valid);
+                    file.force(false);
+                }
+            }
+        }
+        for (Map.Entry<String, Long> entry : values.entrySet())
+            accumulators.restore(entry.getKey(), entry.getValue());
+        Log.info("recovered %d counters from %s", values.size(), dir);
+    }
+
+    void compactQuietly() {
+        try {
+            compact();
+        }
+        catch (IOException e) {
+            // the segments stay, and the next compaction tries again
+            System.err.println("compaction failed: " + e);
+        }
+    }
+
+    /**
+     * Fold all full segments into the snapshot, and delete them.
+     * Runs on the compactor thread only.
+     */
+    void compact() throws IOException {
+        Map<String, Long> values = new TreeMap<>();
+        long through = readSnapshot(values);
+        long last = through;
+        for (long number : segments()) {
+            if (number >= segmentNumber)
+                break; // still being written
+            if (number <= through)
+                continue;
+            readSegment(number, values);
+            last = number;
+        }
+        if (last == through)
+            return;
+
+        Path tmp = dir.resolve("snapshot.tmp");
+        try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file)));
+            out.writeLong(last);
+            out.writeInt(values.size());
+            for (Map.Entry<String, Long> entry : values.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.flush();
+            file.force(true);
+        }
+        Files.move(tmp, snapshotPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory();
+
+        for (long number : segments())
+            if (number <= last)
+                Files.delete(segmentPath(number));
+        Log.info("compacted segments through %d of %s", last, dir);
+    }
+
+    // make renames and new files in `dir` durable; not every system
+    // can open a directory, and those that cannot need not
+    void forceDirectory() {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+        catch (IOException e) {
+            // best effort
+        }
+    }
+
+    /**
+     * Stop logging: write what is pending, wait for a compaction in
+     * progress, and close the files.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        if (accumulators.log == this)
+            accumulators.log = null;
+        try {
+            writer.join();
+            compactor.shutdown();
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+        synchronized (this) {
+            if (failure != null)
+                throw new IOException("write-ahead log failed", failure);
+        }
+    }
+}
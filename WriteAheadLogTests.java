@@ -0,0 +1,226 @@
+/**
+ * A WriteAheadLog must give back every counter that was synced,
+ * whether from the log, from the snapshot, or from both, and share
+ * fsyncs among concurrent sessions.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// attaches a log to Accumulators.global in testServer
+@ParallelRunner.Alone
+public class WriteAheadLogTests {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Log.Mode mode;
+    Path dir;
+
+    @Before
+    public void quiet() {
+        mode = Log.mode;
+        Log.configure(Log.Mode.OFF, 1, 1);
+        dir = folder.getRoot().toPath().resolve("wal");
+    }
+
+    @After
+    public void restore() {
+        Log.configure(mode, 100, 1);
+    }
+
+    // the counters recovered from `dir` into fresh Accumulators
+    SortedMap<String, Long> recover() throws IOException {
+        Accumulators accumulators = new Accumulators(100);
+        WriteAheadLog.open(dir, accumulators, 1 << 20).close();
+        return accumulators.snapshot();
+    }
+
+    interface Work {
+        void run() throws Exception;
+    }
+
+    // `work` done with a log on `accumulators`, closed afterwards
+    void withLog(Accumulators accumulators, long segmentBytes, Work work) throws Exception {
+        WriteAheadLog log = WriteAheadLog.open(dir, accumulators, segmentBytes);
+        try {
+            work.run();
+        }
+        finally {
+            log.close();
+        }
+    }
+
+    List<Path> segments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*.log")) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        Accumulators accumulators = new Accumulators(100);
+        withLog(accumulators, 1 << 20, () -> {
+                accumulators.add("a", 5);
+                accumulators.add("b", -3);
+                accumulators.sync(accumulators.add("a", 10));
+            });
+        assertEquals("{a=15, b=-3}", recover().toString());
+
+        // and again, on top of what was recovered
+        Accumulators again = new Accumulators(100);
+        withLog(again, 1 << 20, () -> {
+                assertEquals(15, again.get("a"));
+                again.sync(again.add("b", 3));
+            });
+        assertEquals("{a=15, b=0}", recover().toString());
+    }
+
+    @Test(timeout = 60000)
+    public void testGroupCommit() throws Exception {
+        Accumulators accumulators = new Accumulators(100);
+        int threads = 32;
+        int rounds = 50;
+        try (WriteAheadLog log = WriteAheadLog.open(dir, accumulators, 1 << 20)) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> running = new ArrayList<>();
+                for (int t = 0; t < threads; t++)
+                    running.add(pool.submit(() -> {
+                                for (int i = 0; i < rounds; i++)
+                                    accumulators.sync(accumulators.add("hot", 1));
+                                return null;
+                            }));
+                for (Future<?> future : running)
+                    future.get();
+            }
+            finally {
+                pool.shutdown();
+            }
+            assertEquals(threads * rounds, log.records());
+            // every sync waited for the disk, but most shared an fsync
+            assertTrue(log.syncs() + " fsyncs", log.syncs() < threads * rounds);
+        }
+        assertEquals(Long.valueOf(threads * rounds), recover().get("hot"));
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        Accumulators accumulators = new Accumulators(100);
+        withLog(accumulators, 1 << 20, () -> {
+                accumulators.sync(accumulators.add("a", 1));
+                accumulators.sync(accumulators.add("a", 2));
+            });
+        // a crash in the middle of the next record
+        Path last = segments().get(segments().size() - 1);
+        Files.write(last, new byte[] { 1, 'a', 0, 0, 0 }, StandardOpenOption.APPEND);
+
+        assertEquals("{a=3}", recover().toString());
+        // the torn record is gone for good, not only skipped
+        assertEquals("{a=3}", recover().toString());
+    }
+
+    @Test
+    public void testCorruptRecord() throws Exception {
+        Accumulators accumulators = new Accumulators(100);
+        withLog(accumulators, 1 << 20, () -> accumulators.sync(accumulators.add("a", 1)));
+        // a second segment, so that the first is not the last
+        Path first = segments().get(0);
+        Files.copy(first, dir.resolve(String.format("segment-%012d.log", 99)));
+        byte[] bytes = Files.readAllBytes(first);
+        bytes[3] ^= 1; // a bit flip in the delta
+        Files.write(first, bytes);
+        try {
+            recover();
+            fail("recovered from a corrupt segment");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testClosedLog() throws Exception {
+        Accumulators accumulators = new Accumulators(100);
+        WriteAheadLog log = WriteAheadLog.open(dir, accumulators, 1 << 20);
+        accumulators.sync(accumulators.add("a", 1));
+        log.close();
+        // as seen by a session that picked up the log just before
+        accumulators.log = log;
+        try {
+            accumulators.add("a", 2);
+            fail("added to a closed log");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        // memory never gets ahead of the log
+        assertEquals(1, accumulators.get("a"));
+        assertEquals("{a=1}", recover().toString());
+    }
+
+    @Test(timeout = 60000)
+    public void testCompaction() throws Exception {
+        Accumulators accumulators = new Accumulators(100);
+        // a segment is full after a few records
+        withLog(accumulators, 64, () -> {
+                for (int i = 1; i <= 200; i++)
+                    accumulators.sync(accumulators.add("c" + i % 7, i));
+
+                long deadline = System.currentTimeMillis() + 10000;
+                while (segments().size() > 2 && System.currentTimeMillis() < deadline)
+                    Thread.sleep(10);
+                assertTrue(segments().size() <= 2);
+                assertTrue(Files.exists(dir.resolve("snapshot")));
+            });
+        assertEquals(accumulators.snapshot(), recover());
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        // the counters of dialogues served with a log survive the server
+        String name = "durable-" + UUID.randomUUID();
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ConcurrentServer server = new ConcurrentServer(serverSocket, new ServerOptions());
+        Thread serverThread = new Thread() {
+                public void run() {
+                    try {
+                        server.serve();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        serverThread.start();
+
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Accumulators.global, 1 << 20)) {
+            for (int i = 1; i <= 3; i++) {
+                try (Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort())) {
+                    socket.setSoTimeout(10000);
+                    TestableClient client = new TestableClient(socket);
+                    client.addTo(name);
+                    client.sendAll(new int[] { i, i });
+                    assertEquals("the sum " + 2 * i + " is positive", client.conclude());
+                }
+            }
+            assertTrue(log.syncs() > 0);
+        }
+        finally {
+            server.close();
+            serverThread.join();
+        }
+        assertNull(Accumulators.global.log);
+        assertEquals(Long.valueOf(12), recover().get(name));
+    }
+}